@@ -21,6 +21,7 @@ public class YourService extends KiboRpcService {
     private final String[] TEMPLATE_NAMES = {"crystal", "emerald", "treasure_box", "coin", "compass", "coral", "fossil", "key", "letter", "shell"};
     private List<PatrolResult> patrolResults = new ArrayList();
     private List<Mat> templates = new ArrayList();
+    private MissionApi mission; // The real api, or the replay simulator when a replay directory is installed
 
     private class PatrolResult {
         int areaId;
@@ -37,7 +38,8 @@ public class YourService extends KiboRpcService {
     /* access modifiers changed from: protected */
     public void runPlan1() {
         Log.i(this.TAG, "start mission");
-        this.api.startMission();
+        this.mission = MissionApiFactory.create(this, this.api);
+        this.mission.startMission();
         loadTemplates();
         Point point = new Point(10.9d, -9.9d, 4.8d);
         Quaternion quatArea1 = new Quaternion(0.0f, 0.707f, 0.0f, 0.707f);
@@ -52,13 +54,13 @@ public class YourService extends KiboRpcService {
         Log.i(this.TAG, "Patrol complete. All areas have been scanned.");
         Log.i(this.TAG, "Moving to astronaut to report completion.");
         moveToWrapper(new Point(11.143d, -6.7607d, 4.9654d), new Quaternion(0.0f, 0.0f, 0.707f, 0.707f));
-        this.api.reportRoundingCompletion();
+        this.mission.reportRoundingCompletion();
         Log.i(this.TAG, "[PLACEHOLDER] Moving to final target location.");
         moveToWrapper(point, quatArea1);
         Log.i(this.TAG, "Taking final snapshot.");
-        this.api.takeTargetItemSnapshot();
+        this.mission.takeTargetItemSnapshot();
         Log.i(this.TAG, "Mission finished.");
-        this.api.shutdownFactory();
+        this.mission.shutdownFactory();
     }
 
     private void patrolAndRecognize(int areaId, Point patrolPoint, Quaternion patrolQuat) {
@@ -70,17 +72,17 @@ public class YourService extends KiboRpcService {
             this.patrolResults.add(new PatrolResult(areaId, "move_failed", 0));
             return;
         }
-        Mat matNavCam = this.api.getMatNavCam();
+        Mat matNavCam = this.mission.getMatNavCam();
         String str3 = this.TAG;
         Log.i(str3, "[PLACEHOLDER] In Area " + areaId + ", found " + 1 + " of " + "coin");
-        this.api.setAreaInfo(areaId, "coin", 1);
+        this.mission.setAreaInfo(areaId, "coin", 1);
         this.patrolResults.add(new PatrolResult(areaId, "coin", 1));
     }
 
     private boolean moveToWrapper(Point point, Quaternion quaternion) {
         int retry_count = 0;
         while (retry_count < 3) {
-            if (this.api.moveTo(point, quaternion, true).hasSucceeded()) {
+            if (this.mission.moveTo(point, quaternion, true)) {
                 Log.i(this.TAG, "Move successful.");
                 return true;
             }
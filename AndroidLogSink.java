@@ -0,0 +1,28 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import android.util.Log;
+
+/**
+ * LogSink that writes to logcat.
+ */
+final class AndroidLogSink implements LogSink {
+    static final LogSink INSTANCE = new AndroidLogSink();
+
+    private AndroidLogSink() {
+    }
+
+    @Override
+    public void info(String tag, String message) {
+        Log.i(tag, message);
+    }
+
+    @Override
+    public void warn(String tag, String message, Throwable error) {
+        Log.w(tag, message, error);
+    }
+
+    @Override
+    public void error(String tag, String message, Throwable error) {
+        Log.e(tag, message, error);
+    }
+}
@@ -0,0 +1,69 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import org.opencv.core.Mat;
+
+/**
+ * Packs up to maxBatch letterboxed images back to back into one direct
+ * buffer, the layout of a model input with batch dimension K.
+ *
+ * Each slot has its own TensorPreprocessor writing in place, so packing
+ * costs no extra copy, and each keeps the letterbox geometry of its image
+ * for mapping boxes back. The buffer returned for K images is a view of
+ * exactly K slots, because the interpreter checks the byte count.
+ */
+class BatchPreprocessor {
+    private final int imageBytes;
+    private final TensorPreprocessor[] slots;
+    private final ByteBuffer[] views; // views[k - 1] covers the first k slots
+
+    BatchPreprocessor(YoloDetector detector, int maxBatch) {
+        imageBytes = TensorPreprocessor.inputBytes(detector);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(imageBytes * maxBatch);
+        buffer.order(ByteOrder.nativeOrder());
+
+        slots = new TensorPreprocessor[maxBatch];
+        views = new ByteBuffer[maxBatch];
+        for (int i = 0; i < maxBatch; i++) {
+            slots[i] = new TensorPreprocessor(detector, slice(buffer, i * imageBytes, imageBytes));
+            views[i] = slice(buffer, 0, (i + 1) * imageBytes);
+        }
+    }
+
+    int maxBatch() {
+        return slots.length;
+    }
+
+    /**
+     * Preprocess images into consecutive slots and return the packed input.
+     * The buffer is owned by this object and rewritten on every call.
+     */
+    ByteBuffer process(List<Mat> images) {
+        if (images.isEmpty() || images.size() > slots.length) {
+            throw new IllegalArgumentException("Batch of " + images.size() + " images, capacity " + slots.length);
+        }
+        for (int i = 0; i < images.size(); i++) {
+            slots[i].process(images.get(i));
+        }
+        ByteBuffer view = views[images.size() - 1];
+        view.rewind();
+        return view;
+    }
+
+    /** Preprocessor of slot i, for mapping its boxes back to the source image. */
+    TensorPreprocessor slot(int i) {
+        return slots[i];
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        buffer.clear();
+        buffer.position(offset);
+        buffer.limit(offset + length);
+        ByteBuffer slice = buffer.slice();
+        slice.order(ByteOrder.nativeOrder());
+        buffer.clear();
+        return slice;
+    }
+}
@@ -0,0 +1,131 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import android.util.Log;
+import java.util.Arrays;
+import java.util.List;
+import org.opencv.core.Mat;
+
+/**
+ * Fuses per-class detection scores over a burst of frames taken at one pose
+ * and stops as soon as the vote is decisive.
+ *
+ * Frames are detected one at a time in capture order, because the
+ * detectors behind FrameDetector are not reentrant. Each frame with a
+ * detection adds its vote; a frame without one adds nothing. Once the
+ * leading class is ahead of the runner-up by decisiveMargin, the remaining
+ * frames are skipped.
+ */
+class BurstVoter {
+    private static final String TAG = "BurstVoter";
+
+    /** Result of detecting one frame. */
+    static class Vote {
+        final int classIndex;
+        final float confidence;
+        final int count;
+
+        Vote(int classIndex, float confidence, int count) {
+            this.classIndex = classIndex;
+            this.confidence = confidence;
+            this.count = count;
+        }
+    }
+
+    interface FrameDetector {
+        /** Detect one frame, the index-th of the burst; returns null when nothing was found. */
+        Vote detect(Mat frame, int index);
+    }
+
+    private final float[] scores;
+    private final float[] bestConfidence;
+    private final int[] bestCount;
+    private final float decisiveMargin;
+    int framesUsed; // Frames detected in the last vote
+    int framesVoted; // Of those, frames with a detection
+
+    /**
+     * @param decisiveMargin fused-score lead over the runner-up that ends the burst
+     */
+    BurstVoter(int numClasses, float decisiveMargin) {
+        scores = new float[numClasses];
+        bestConfidence = new float[numClasses];
+        bestCount = new int[numClasses];
+        this.decisiveMargin = decisiveMargin;
+    }
+
+    /**
+     * Vote over frames in order. Returns the winning class index, or -1 if
+     * no frame produced a detection.
+     */
+    int vote(List<Mat> frames, FrameDetector detector) {
+        Arrays.fill(scores, 0);
+        Arrays.fill(bestConfidence, 0);
+        Arrays.fill(bestCount, 0);
+        framesUsed = 0;
+        framesVoted = 0;
+
+        boolean decisive = false;
+        for (int i = 0; i < frames.size() && !decisive && !Thread.currentThread().isInterrupted(); i++) {
+            Vote vote;
+            try {
+                vote = detector.detect(frames.get(i), i);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Frame detection failed", e);
+                vote = null;
+            }
+            framesUsed++;
+            if (vote != null) {
+                framesVoted++;
+                add(vote);
+                decisive = isDecisive();
+            }
+        }
+
+        if (decisive && framesUsed < frames.size()) {
+            Log.i(TAG, "Decisive after " + framesUsed + " of " + frames.size() + " frames");
+        }
+        return winner();
+    }
+
+    float score(int classIndex) {
+        return scores[classIndex];
+    }
+
+    /** Item count from the most confident frame that voted for the class. */
+    int count(int classIndex) {
+        return bestCount[classIndex];
+    }
+
+    float confidence(int classIndex) {
+        return bestConfidence[classIndex];
+    }
+
+    private void add(Vote vote) {
+        scores[vote.classIndex] += vote.confidence;
+        if (vote.confidence > bestConfidence[vote.classIndex]) {
+            bestConfidence[vote.classIndex] = vote.confidence;
+            bestCount[vote.classIndex] = vote.count;
+        }
+    }
+
+    private boolean isDecisive() {
+        float first = 0, second = 0;
+        for (float score : scores) {
+            if (score > first) {
+                second = first;
+                first = score;
+            } else if (score > second) {
+                second = score;
+            }
+        }
+        return first - second >= decisiveMargin;
+    }
+
+    private int winner() {
+        int best = -1;
+        for (int i = 0; i < scores.length; i++) {
+            if (scores[i] > 0 && (best < 0 || scores[i] > scores[best])) best = i;
+        }
+        return best;
+    }
+}
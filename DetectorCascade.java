@@ -0,0 +1,299 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.opencv.core.Mat;
+
+/**
+ * Runs several detectors over one image as a cost-aware cascade.
+ *
+ * Each stage learns its mean latency and hit rate (how often its result
+ * clears the stage threshold) while the mission runs. Stages are tried in
+ * order of expected cost per hit, and a stage that rarely hits is skipped
+ * except for an occasional probe. If the expected serial time fits the
+ * frame budget, stages run one after another. Otherwise they all run at
+ * once; the first result above its threshold wins and the others are
+ * cancelled. Cancellation is cooperative: detectors poll their cancelled
+ * flag between units of work.
+ *
+ * Every stage owns its threads, one unless a parallelism is given, so a
+ * stage never runs more often at once than its detector allows, even while
+ * a cancelled run is still finishing. A detector with parallelism 1 need
+ * not be thread-safe, but different stages must not share mutable state.
+ * Per-image context reaches the stages as an int tag, never through shared
+ * fields, because a cancelled run may still be reading after the next
+ * detect() call has started.
+ */
+class DetectorCascade<R> {
+    private static final String TAG = "DetectorCascade";
+    private static final double LATENCY_SMOOTHING = 0.3; // EWMA weight of the newest sample
+    private static final double PRIOR_RUNS = 2; // Weight of the prior hit rate, in runs
+    private static final int MIN_RUNS_TO_SKIP = 4;
+    private static final double MIN_HIT_RATE = 0.1;
+    private static final int PROBE_INTERVAL = 8; // A skipped stage still runs every Nth call
+
+    interface Confidence<R> {
+        float of(R result);
+    }
+
+    abstract static class Stage<R> {
+        final String name;
+        final float threshold;
+        private final ExecutorService threads;
+        private double meanLatencyMs;
+        private double hits;
+        private double runs;
+        private int samples;
+
+        /**
+         * @param threshold      a result counts as a hit when its confidence is above this
+         * @param priorLatencyMs latency assumed until the first run is measured
+         * @param priorHitRate   hit rate assumed until runs are observed
+         */
+        Stage(String name, float threshold, double priorLatencyMs, double priorHitRate) {
+            this(name, threshold, priorLatencyMs, priorHitRate, 1);
+        }
+
+        /**
+         * @param parallelism how many runs of detect() may overlap
+         */
+        Stage(String name, float threshold, double priorLatencyMs, double priorHitRate, int parallelism) {
+            this.threads = Executors.newFixedThreadPool(Math.max(1, parallelism));
+            this.name = name;
+            this.threshold = threshold;
+            this.meanLatencyMs = priorLatencyMs;
+            this.hits = priorHitRate * PRIOR_RUNS;
+            this.runs = PRIOR_RUNS;
+        }
+
+        /**
+         * Detect one image; returns null if nothing was found or once cancelled is set.
+         * The image may be a copy of the one given to DetectorCascade.detect().
+         *
+         * @param tag the caller's tag for the image, as given to DetectorCascade.detect()
+         */
+        abstract R detect(Mat image, int tag, AtomicBoolean cancelled);
+
+        /**
+         * Whether detect() answers this tag from a result computed outside the
+         * cascade, e.g. by a batch. Such answers take no time and are not
+         * recorded as runs; count the batch with DetectorCascade.recordBatch().
+         */
+        boolean isPrefetched(int tag) {
+            return false;
+        }
+
+        private R run(Mat image, int tag, AtomicBoolean cancelled, Confidence<R> confidence) {
+            if (cancelled.get()) {
+                return null;
+            }
+            boolean prefetched = isPrefetched(tag);
+            long start = System.nanoTime();
+            R result = detect(image, tag, cancelled);
+            // Aborted runs say nothing about latency or hit rate
+            if (!cancelled.get() && !prefetched) {
+                record((System.nanoTime() - start) / 1e6, result != null && confidence.of(result) > threshold);
+            }
+            return result;
+        }
+
+        private synchronized void record(double latencyMs, boolean hit) {
+            meanLatencyMs = samples == 0 ? latencyMs
+                    : meanLatencyMs + LATENCY_SMOOTHING * (latencyMs - meanLatencyMs);
+            samples++;
+            runs++;
+            if (hit) hits++;
+        }
+
+        synchronized double meanLatencyMs() {
+            return meanLatencyMs;
+        }
+
+        synchronized double hitRate() {
+            return hits / runs;
+        }
+
+        private synchronized boolean isUnproductive() {
+            return samples >= MIN_RUNS_TO_SKIP && hits / runs < MIN_HIT_RATE;
+        }
+
+        private double costPerHit() {
+            return meanLatencyMs() / Math.max(hitRate(), 1e-3);
+        }
+    }
+
+    private final Confidence<R> confidence;
+    private final List<Stage<R>> stages;
+    private int calls;
+    /** Name of the stage that produced the last result, or null. */
+    String lastStage;
+
+    DetectorCascade(Confidence<R> confidence, List<Stage<R>> stages) {
+        this.confidence = confidence;
+        this.stages = new ArrayList<>(stages);
+    }
+
+    /**
+     * Detect one image. Returns the first result above its stage threshold,
+     * or null if no stage hit. The image is only read, and is not used after
+     * this call returns.
+     *
+     * @param tag      passed unchanged to every stage, e.g. which area or frame the image shows
+     * @param budgetMs time the caller can afford for this image; above it the stages run concurrently
+     */
+    R detect(Mat image, int tag, long budgetMs) {
+        calls++;
+        lastStage = null;
+        List<Stage<R>> order = plan();
+        if (order.size() > 1 && expectedSerialMs(order) > budgetMs) {
+            return runConcurrent(order, image, tag);
+        }
+        return runSerial(order, image, tag);
+    }
+
+    /**
+     * Count a batch that one of the stages ran outside the cascade as one run
+     * per result, each taking the amortized latency batchMs / results.size().
+     * Null results are misses.
+     */
+    void recordBatch(Stage<R> stage, double batchMs, List<R> results) {
+        if (results.isEmpty()) {
+            return;
+        }
+        double latencyMs = batchMs / results.size();
+        for (R result : results) {
+            stage.record(latencyMs, result != null && confidence.of(result) > stage.threshold);
+        }
+    }
+
+    /**
+     * Log the learned per-stage statistics.
+     */
+    void logStats() {
+        for (Stage<R> stage : stages) {
+            Log.i(TAG, String.format(Locale.US, "%-14s runs %3d  hit rate %.2f  mean %.1f ms",
+                    stage.name, stage.samples, stage.hitRate(), stage.meanLatencyMs()));
+        }
+    }
+
+    void shutdown() {
+        for (Stage<R> stage : stages) {
+            stage.threads.shutdown();
+        }
+    }
+
+    // Stages in order of expected cost per hit, without unproductive ones unless probing
+    private List<Stage<R>> plan() {
+        List<Stage<R>> order = new ArrayList<>(stages);
+        Collections.sort(order, new Comparator<Stage<R>>() {
+            @Override
+            public int compare(Stage<R> a, Stage<R> b) {
+                return Double.compare(a.costPerHit(), b.costPerHit());
+            }
+        });
+        if (calls % PROBE_INTERVAL != 0) {
+            for (int i = order.size() - 1; i > 0; i--) {
+                if (order.get(i).isUnproductive()) {
+                    order.remove(i);
+                }
+            }
+        }
+        return order;
+    }
+
+    // Expected time to run the stages in order, stopping at the first hit
+    private static <R> double expectedSerialMs(List<Stage<R>> order) {
+        double expected = 0;
+        double reach = 1; // Probability that a stage runs at all
+        for (Stage<R> stage : order) {
+            expected += reach * stage.meanLatencyMs();
+            reach *= 1 - stage.hitRate();
+        }
+        return expected;
+    }
+
+    private R runSerial(List<Stage<R>> order, final Mat image, final int tag) {
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        for (final Stage<R> stage : order) {
+            Future<R> future = stage.threads.submit(new Callable<R>() {
+                @Override
+                public R call() {
+                    return stage.run(image, tag, cancelled, confidence);
+                }
+            });
+            R result = await(future, stage);
+            if (result != null && confidence.of(result) > stage.threshold) {
+                lastStage = stage.name;
+                return result;
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+        }
+        return null;
+    }
+
+    private R runConcurrent(List<Stage<R>> order, Mat image, final int tag) {
+        // Losers may still be reading after we return, so they get a private copy
+        final Mat shared = image.clone();
+        final AtomicInteger users = new AtomicInteger(order.size());
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        BlockingQueue<Future<R>> done = new LinkedBlockingQueue<>();
+        List<Future<R>> futures = new ArrayList<>();
+
+        for (final Stage<R> stage : order) {
+            futures.add(new ExecutorCompletionService<R>(stage.threads, done).submit(new Callable<R>() {
+                @Override
+                public R call() {
+                    try {
+                        return stage.run(shared, tag, cancelled, confidence);
+                    } finally {
+                        if (users.decrementAndGet() == 0) shared.release();
+                    }
+                }
+            }));
+        }
+
+        try {
+            for (int i = 0; i < order.size(); i++) {
+                Future<R> future = done.take();
+                Stage<R> stage = order.get(futures.indexOf(future));
+                R result = await(future, stage);
+                if (result != null && confidence.of(result) > stage.threshold) {
+                    lastStage = stage.name;
+                    return result;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            cancelled.set(true);
+        }
+        return null;
+    }
+
+    private R await(Future<R> future, Stage<R> stage) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Stage " + stage.name + " failed", e.getCause());
+        }
+        return null;
+    }
+}
@@ -0,0 +1,209 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import android.util.Log;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.opencv.core.Mat;
+
+/**
+ * Writes diagnostic images and CSV rows on a background thread so that
+ * PNG encoding and file I/O stay off the mission thread.
+ *
+ * Work is queued in a bounded queue. When it is full the configured
+ * OverflowPolicy decides what is lost; diagnostics never block the mission.
+ * Call close() before api.shutdownFactory() to drain what is queued. The
+ * CSV file is written and closed only on the worker thread.
+ */
+class DiagnosticsWriter {
+    private static final String TAG = "DiagnosticsWriter";
+
+    enum OverflowPolicy {
+        /** Discard the item being submitted. */
+        DROP_NEWEST,
+        /** Discard the oldest queued item to make room. */
+        DROP_OLDEST
+    }
+
+    private abstract static class Task {
+        abstract void run() throws IOException;
+
+        /** Called instead of run() when the task is dropped. */
+        void discard() {
+        }
+    }
+
+    private final MissionApi api;
+    private final BlockingQueue<Task> queue;
+    private final OverflowPolicy policy;
+    private final int imageSampleEvery;
+    private final Thread worker;
+    private final Task stop = new Task() { // Queued by close(); the worker exits when it takes it
+        @Override
+        void run() {
+        }
+    };
+    private final SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US); // worker thread only
+    private volatile BufferedWriter csvWriter;
+
+    private volatile boolean closed;
+    private final AtomicInteger imagesOffered = new AtomicInteger();
+    private final AtomicInteger dropped = new AtomicInteger();
+
+    /**
+     * @param capacity         maximum number of queued writes
+     * @param policy           what to drop when the queue is full
+     * @param imageSampleEvery keep one of every N images (1 keeps all)
+     */
+    DiagnosticsWriter(MissionApi api, int capacity, OverflowPolicy policy, int imageSampleEvery) {
+        this.api = api;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.policy = policy;
+        this.imageSampleEvery = Math.max(1, imageSampleEvery);
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, TAG);
+        worker.setDaemon(true);
+        worker.setPriority(Thread.MIN_PRIORITY);
+        worker.start();
+    }
+
+    /**
+     * Open a CSV file in dir and write its header row. Call this during
+     * initialization, before any rows are queued.
+     */
+    void openCsv(File dir, String fileName, String header) throws IOException {
+        csvWriter = new BufferedWriter(new FileWriter(new File(dir, fileName)));
+        csvWriter.write(header + "\n");
+    }
+
+    /**
+     * Queue a CSV row; the timestamp column is taken now and formatted on the worker.
+     */
+    void csvRow(String row) {
+        final long timestamp = System.currentTimeMillis();
+        final String line = row;
+        offer(new Task() {
+            @Override
+            void run() throws IOException {
+                if (csvWriter == null) return;
+                csvWriter.write(timestampFormat.format(new Date(timestamp)) + "," + line + "\n");
+            }
+        });
+    }
+
+    /**
+     * Queue an image for api.saveMatImage. The Mat is copied, so the caller
+     * may reuse or release it immediately.
+     */
+    void saveImage(Mat image, String fileName) {
+        if (closed || imagesOffered.getAndIncrement() % imageSampleEvery != 0) {
+            return;
+        }
+        final Mat copy = image.clone();
+        final String name = fileName;
+        offer(new Task() {
+            @Override
+            void run() {
+                try {
+                    api.saveMatImage(copy, name);
+                } finally {
+                    copy.release();
+                }
+            }
+
+            @Override
+            void discard() {
+                copy.release();
+            }
+        });
+    }
+
+    /**
+     * Drain the queue and stop the worker, waiting at most timeoutMs. On a
+     * timeout the worker is interrupted: it finishes the write in progress,
+     * discards the rest and then closes the CSV file itself.
+     */
+    void close(long timeoutMs) {
+        if (closed) return;
+        closed = true; // No new work from here on; only the stop marker goes in
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        try {
+            if (!queue.offer(stop, timeoutMs, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Timed out queueing the stop marker, " + queue.size() + " writes left");
+                worker.interrupt();
+            } else {
+                worker.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+                if (worker.isAlive()) {
+                    Log.w(TAG, "Timed out flushing diagnostics, " + queue.size() + " writes left");
+                    worker.interrupt();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            worker.interrupt();
+        }
+        if (dropped.get() > 0) {
+            Log.w(TAG, "Dropped " + dropped.get() + " diagnostic writes");
+        }
+    }
+
+    private boolean offer(Task task) {
+        if (!closed) {
+            if (queue.offer(task)) return true;
+            if (policy == OverflowPolicy.DROP_OLDEST) {
+                Task oldest = queue.poll();
+                if (oldest != null) {
+                    oldest.discard();
+                    dropped.incrementAndGet();
+                }
+                if (queue.offer(task)) return true;
+            }
+        }
+        task.discard();
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                Task task;
+                try {
+                    task = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (task == stop) {
+                    return;
+                }
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    Log.w(TAG, "Diagnostic write failed", e);
+                }
+            }
+        } finally {
+            Task left;
+            while ((left = queue.poll()) != null) {
+                if (left == stop) continue;
+                left.discard();
+                dropped.incrementAndGet();
+            }
+            try {
+                if (csvWriter != null) csvWriter.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
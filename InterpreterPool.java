@@ -0,0 +1,255 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import android.content.Context;
+import android.util.Log;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.tensorflow.lite.Interpreter;
+
+/**
+ * A fixed set of Interpreters over one memory-mapped model, handed out with
+ * borrow() and giveBack().
+ *
+ * An Interpreter is not thread-safe, so each concurrent caller borrows its
+ * own. All interpreters share the read-only model mapping and run with the
+ * XNNPACK CPU delegate. create() benchmarks 1, 2 and 4 threads per
+ * interpreter, with as many interpreters as the cores allow, closing each
+ * set as soon as it is measured, and then rebuilds the configuration with
+ * the best throughput among those whose single-inference latency is close
+ * to the fastest. A configuration whose benchmark throws is left out. The
+ * rebuilt interpreters are warmed up, so call create() before the mission
+ * clock starts.
+ */
+class InterpreterPool {
+    private static final String TAG = "InterpreterPool";
+    private static final int[] THREAD_OPTIONS = {1, 2, 4};
+    private static final double LATENCY_SLACK = 1.5; // Accept up to 1.5x the fastest latency for more throughput
+
+    private final List<Interpreter> interpreters;
+    private final BlockingQueue<Interpreter> idle;
+    private final int threadsPerInterpreter;
+
+    private InterpreterPool(List<Interpreter> interpreters, int threadsPerInterpreter) {
+        this.interpreters = interpreters;
+        this.idle = new ArrayBlockingQueue<>(interpreters.size(), false, interpreters);
+        this.threadsPerInterpreter = threadsPerInterpreter;
+    }
+
+    /**
+     * Benchmark the thread configurations and build the pool with the best one.
+     *
+     * @param maxInterpreters most callers that will run inferences at the same time
+     * @param benchmarkRuns   timed inferences per interpreter and configuration
+     */
+    static InterpreterPool create(Context context, String assetName, int maxInterpreters, int benchmarkRuns) throws IOException {
+        MappedByteBuffer model = ModelLoader.mapModel(context, assetName);
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        // Benchmark every configuration before choosing: the latency bound depends on the fastest of all.
+        // Each candidate is closed right after its benchmark, so at most one set of interpreters is alive.
+        List<int[]> configurations = new ArrayList<>(); // {interpreters, threads each}
+        List<double[]> results = new ArrayList<>(); // {mean latency ms, inferences per second}
+        double fastestLatency = Double.MAX_VALUE;
+        for (int threads : THREAD_OPTIONS) {
+            if (threads > cores && threads != THREAD_OPTIONS[0]) {
+                continue;
+            }
+            int count = Math.max(1, Math.min(maxInterpreters, cores / threads));
+            List<Interpreter> candidate;
+            try {
+                candidate = createInterpreters(model, count, threads);
+            } catch (RuntimeException e) {
+                Log.w(TAG, count + " x " + threads + " threads: could not create interpreters, skipping", e);
+                continue;
+            }
+            double[] result;
+            try {
+                result = benchmark(candidate, benchmarkRuns);
+            } finally {
+                close(candidate);
+            }
+            if (result == null) {
+                Log.w(TAG, count + " x " + threads + " threads: benchmark failed, skipping");
+                continue;
+            }
+            Log.i(TAG, String.format(Locale.US, "%d x %d threads: %.1f ms/inference, %.2f inferences/s",
+                    count, threads, result[0], result[1]));
+            configurations.add(new int[]{count, threads});
+            results.add(result);
+            fastestLatency = Math.min(fastestLatency, result[0]);
+        }
+        if (configurations.isEmpty()) {
+            throw new IOException("No interpreter configuration could run " + assetName);
+        }
+
+        int best = -1;
+        for (int i = 0; i < configurations.size(); i++) {
+            double[] result = results.get(i);
+            if (result[0] <= fastestLatency * LATENCY_SLACK && (best < 0 || result[1] > results.get(best)[1])) {
+                best = i;
+            }
+        }
+        int count = configurations.get(best)[0];
+        int threads = configurations.get(best)[1];
+        List<Interpreter> chosen;
+        try {
+            chosen = createInterpreters(model, count, threads);
+        } catch (RuntimeException e) {
+            throw new IOException("Could not rebuild " + count + " x " + threads + " threads for " + assetName, e);
+        }
+        try {
+            warmUp(chosen);
+        } catch (RuntimeException e) {
+            close(chosen);
+            throw new IOException("Warm-up failed for " + count + " x " + threads + " threads of " + assetName, e);
+        }
+        Log.i(TAG, "Using " + count + " interpreter(s) with " + threads + " thread(s) each");
+        return new InterpreterPool(chosen, threads);
+    }
+
+    /**
+     * Take an idle interpreter, waiting if all are in use. Hand it back with giveBack().
+     */
+    Interpreter borrow() throws InterruptedException {
+        return idle.take();
+    }
+
+    void giveBack(Interpreter interpreter) {
+        idle.offer(interpreter);
+    }
+
+    /** All interpreters, e.g. to set up per-interpreter buffers; do not run them without borrowing. */
+    List<Interpreter> interpreters() {
+        return interpreters;
+    }
+
+    int size() {
+        return interpreters.size();
+    }
+
+    int threadsPerInterpreter() {
+        return threadsPerInterpreter;
+    }
+
+    void close() {
+        close(interpreters);
+        idle.clear();
+    }
+
+    private static List<Interpreter> createInterpreters(MappedByteBuffer model, int count, int threads) {
+        List<Interpreter> interpreters = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Interpreter.Options options = new Interpreter.Options();
+            options.setNumThreads(threads);
+            options.setUseXNNPACK(true);
+            Interpreter interpreter;
+            try {
+                interpreter = new Interpreter(model, options);
+            } catch (IllegalArgumentException e) {
+                // Ops the delegate cannot take fail at construction; run them on the default kernels
+                Log.w(TAG, "XNNPACK not applicable, using default CPU kernels", e);
+                options.setUseXNNPACK(false);
+                interpreter = new Interpreter(model, options);
+            }
+            interpreters.add(interpreter);
+        }
+        return interpreters;
+    }
+
+    // Run every interpreter on its own thread at once; returns {mean latency ms, inferences per second},
+    // or null if any interpreter failed, since its missing time would make the configuration look fast
+    private static double[] benchmark(List<Interpreter> interpreters, final int runs) {
+        final long[] busyNanos = new long[interpreters.size()];
+        final AtomicBoolean failed = new AtomicBoolean();
+        final CountDownLatch ready = new CountDownLatch(interpreters.size());
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(interpreters.size());
+        for (int i = 0; i < interpreters.size(); i++) {
+            final int index = i;
+            final Interpreter interpreter = interpreters.get(i);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    boolean warmedUp = false;
+                    try {
+                        ByteBuffer input = ByteBuffer.allocateDirect(interpreter.getInputTensor(0).numBytes());
+                        ByteBuffer output = ByteBuffer.allocateDirect(interpreter.getOutputTensor(0).numBytes());
+                        interpreter.run(input, output); // Warm-up: tensor allocation and kernel selection
+                        warmedUp = true;
+                        ready.countDown();
+                        start.await();
+                        long t = System.nanoTime();
+                        for (int r = 0; r < runs; r++) {
+                            input.rewind();
+                            output.rewind();
+                            interpreter.run(input, output);
+                        }
+                        busyNanos[index] = System.nanoTime() - t;
+                    } catch (InterruptedException e) {
+                        failed.set(true);
+                        Thread.currentThread().interrupt();
+                    } catch (RuntimeException e) {
+                        failed.set(true);
+                        Log.w(TAG, "Benchmark inference failed", e);
+                    } finally {
+                        if (!warmedUp) {
+                            ready.countDown(); // Do not hold up the others; failed makes the result null
+                        }
+                        done.countDown();
+                    }
+                }
+            }, TAG + "-bench-" + i).start();
+        }
+
+        long wallStart = 0;
+        try {
+            ready.await();
+            wallStart = System.nanoTime();
+            start.countDown();
+            done.await();
+        } catch (InterruptedException e) {
+            // The caller closes these interpreters next, so let every benchmark thread finish first
+            start.countDown();
+            while (done.getCount() > 0) {
+                try {
+                    done.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        long wallNanos = System.nanoTime() - wallStart;
+        if (failed.get()) {
+            return null;
+        }
+
+        long totalBusy = 0;
+        for (long busy : busyNanos) totalBusy += busy;
+        int inferences = interpreters.size() * runs;
+        return new double[]{totalBusy / 1e6 / inferences, inferences / (wallNanos / 1e9)};
+    }
+
+    // One inference per interpreter, so the first timed inference does not pay for tensor allocation
+    private static void warmUp(List<Interpreter> interpreters) {
+        for (Interpreter interpreter : interpreters) {
+            ByteBuffer input = ByteBuffer.allocateDirect(interpreter.getInputTensor(0).numBytes());
+            ByteBuffer output = ByteBuffer.allocateDirect(interpreter.getOutputTensor(0).numBytes());
+            interpreter.run(input, output);
+        }
+    }
+
+        private static void close(List<Interpreter> interpreters) {
+        for (Interpreter interpreter : interpreters) {
+            interpreter.close();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Cuts the item sheet next to an AR marker out of a NavCam frame as a small
+ * fronto-parallel crop.
+ *
+ * The four marker corners are undistorted as points, a homography maps the
+ * marker onto its known place in the sheet, and only the bounding box of the
+ * projected sheet is rectified and warped. Detectors then see a fixed-size,
+ * upright view of the sheet instead of the whole frame.
+ */
+class ItemSheetRoi {
+    // Lost Item display area in meters, in the marker frame: origin at the
+    // marker's top-left corner, x to the right, y down. From the AR Tag
+    // Information figure of the rulebook (2.2.3): a 27 x 15 cm sheet, the
+    // 5 cm marker's center 3.75 cm from its top and right edges, and the
+    // 20 cm wide display area along its left edge.
+    static final double MARKER_SIZE = 0.05;
+    static final double SHEET_LEFT = -0.2075;
+    static final double SHEET_TOP = -0.0125;
+    static final double SHEET_RIGHT = -0.0075;
+    static final double SHEET_BOTTOM = 0.1375;
+
+    private static final double PIXELS_PER_METER = 1200; // Crop resolution
+
+    private final Undistorter undistorter;
+    private final Size cropSize;
+    private final MatOfPoint2f markerInCrop;
+    private final MatOfPoint2f sheetInCrop;
+    private final Mat crop = new Mat();
+
+    ItemSheetRoi(Undistorter undistorter) {
+        this.undistorter = undistorter;
+        int width = (int) Math.round((SHEET_RIGHT - SHEET_LEFT) * PIXELS_PER_METER);
+        int height = (int) Math.round((SHEET_BOTTOM - SHEET_TOP) * PIXELS_PER_METER);
+        cropSize = new Size(width, height);
+
+        // Marker corners in ArUco order: top-left, top-right, bottom-right, bottom-left
+        markerInCrop = new MatOfPoint2f(
+                toCrop(0, 0), toCrop(MARKER_SIZE, 0), toCrop(MARKER_SIZE, MARKER_SIZE), toCrop(0, MARKER_SIZE));
+        sheetInCrop = new MatOfPoint2f(
+                new Point(0, 0), new Point(width, 0), new Point(width, height), new Point(0, height));
+    }
+
+    /**
+     * Extract the sheet crop for one marker.
+     *
+     * @param image         raw (distorted) NavCam frame
+     * @param markerCorners 1x4 CV_32FC2 corners from Aruco.detectMarkers
+     * @return the crop, reused by the next call, or null unless the whole sheet is in view
+     */
+    Mat extract(Mat image, Mat markerCorners) {
+        MatOfPoint2f distorted = new MatOfPoint2f();
+        markerCorners.reshape(2, 4).convertTo(distorted, CvType.CV_32FC2);
+        MatOfPoint2f markerInImage = new MatOfPoint2f();
+        Calib3d.undistortPoints(distorted, markerInImage, undistorter.getCameraMatrix(),
+                undistorter.getDistCoeffs(), new Mat(), undistorter.getCameraMatrix());
+
+        // Where the sheet corners land in the undistorted frame
+        Mat cropToImage = Imgproc.getPerspectiveTransform(markerInCrop, markerInImage);
+        MatOfPoint2f sheetInImage = new MatOfPoint2f();
+        Core.perspectiveTransform(sheetInCrop, sheetInImage, cropToImage);
+
+        Rect roi = bounds(sheetInImage.toArray(), image.cols(), image.rows());
+        if (roi == null) {
+            distorted.release();
+            markerInImage.release();
+            cropToImage.release();
+            sheetInImage.release();
+            return null;
+        }
+
+        // Rectify only the sheet's bounding box, then warp it upright
+        Mat rectified = undistorter.rectify(image, roi);
+        Point[] shifted = markerInImage.toArray();
+        for (Point p : shifted) {
+            p.x -= roi.x;
+            p.y -= roi.y;
+        }
+        Mat roiToCrop = Imgproc.getPerspectiveTransform(new MatOfPoint2f(shifted), markerInCrop);
+        Imgproc.warpPerspective(rectified, crop, roiToCrop, cropSize, Imgproc.INTER_LINEAR);
+
+        distorted.release();
+        markerInImage.release();
+        cropToImage.release();
+        sheetInImage.release();
+        roiToCrop.release();
+        return crop;
+    }
+
+    // Bounding box of points, or null if it leaves the frame or is too small to use.
+    // A partly visible sheet would come back as a crop padded with black.
+    private static Rect bounds(Point[] points, int cols, int rows) {
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (Point p : points) {
+            minX = Math.min(minX, p.x);
+            minY = Math.min(minY, p.y);
+            maxX = Math.max(maxX, p.x);
+            maxY = Math.max(maxY, p.y);
+        }
+        int x0 = (int) Math.floor(minX);
+        int y0 = (int) Math.floor(minY);
+        int x1 = (int) Math.ceil(maxX);
+        int y1 = (int) Math.ceil(maxY);
+        if (x0 < 0 || y0 < 0 || x1 > cols || y1 > rows || x1 - x0 < 8 || y1 - y0 < 8) {
+            return null;
+        }
+        return new Rect(x0, y0, x1 - x0, y1 - y0);
+    }
+
+    private static Point toCrop(double x, double y) {
+        return new Point((x - SHEET_LEFT) * PIXELS_PER_METER, (y - SHEET_TOP) * PIXELS_PER_METER);
+    }
+}
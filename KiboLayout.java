@@ -0,0 +1,64 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import gov.nasa.arc.astrobee.types.Point;
+import gov.nasa.arc.astrobee.types.Quaternion;
+
+/**
+ * Static geometry of the 6th Kibo-RPC module, from the rulebook.
+ * Boxes are {minX, minY, minZ, maxX, maxY, maxZ} in meters, world frame.
+ */
+final class KiboLayout {
+    /** Keep-in zones; the robot must stay inside their union. */
+    static final double[][] KEEP_IN_ZONES = {
+            {10.3, -10.2, 4.32, 11.55, -6.0, 5.57},
+            {9.5, -10.5, 4.02, 10.5, -9.6, 4.8},
+    };
+
+    /**
+     * Keep-out zones inside the keep-in zones. The 6th-edition rulebook
+     * defines none (its Oasis zones are bonus regions, not obstacles).
+     */
+    static final double[][] KEEP_OUT_ZONES = {};
+
+    /** Item-sheet planes of areas 1 to 4; each box is flat along one axis. */
+    static final double[][] AREAS = {
+            {10.42, -10.58, 4.82, 11.48, -10.58, 5.57},
+            {10.3, -9.25, 3.76203, 11.55, -8.5, 3.76203},
+            {10.3, -8.4, 3.76093, 11.55, -7.45, 3.76093},
+            {9.866984, -7.34, 4.32, 9.866984, -6.365, 5.57},
+    };
+
+    static final Point START_POINT = new Point(9.815, -9.806, 4.293);
+    static final Quaternion START_QUATERNION = new Quaternion(1f, 0f, 0f, 0f);
+    static final Point ASTRONAUT_POINT = new Point(11.143, -6.7607, 4.9654);
+    static final Quaternion ASTRONAUT_QUATERNION = new Quaternion(0f, 0f, 0.707f, 0.707f);
+
+    private KiboLayout() {
+    }
+
+    /** Center of the item-sheet plane of an area (1 to 4). */
+    static Point areaCenter(int areaId) {
+        double[] box = AREAS[areaId - 1];
+        return new Point((box[0] + box[3]) / 2, (box[1] + box[4]) / 2, (box[2] + box[5]) / 2);
+    }
+
+    static boolean inBox(double[] box, double x, double y, double z) {
+        return x >= box[0] && x <= box[3] && y >= box[1] && y <= box[4] && z >= box[2] && z <= box[5];
+    }
+
+    static boolean inKeepIn(double x, double y, double z) {
+        for (double[] zone : KEEP_IN_ZONES) {
+            if (inBox(zone, x, y, z)) return true;
+        }
+        return false;
+    }
+
+    /** Inside the keep-in zones and outside every keep-out zone. */
+    static boolean allowed(double x, double y, double z) {
+        if (!inKeepIn(x, y, z)) return false;
+        for (double[] zone : KEEP_OUT_ZONES) {
+            if (inBox(zone, x, y, z)) return false;
+        }
+        return true;
+    }
+}
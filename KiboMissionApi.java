@@ -0,0 +1,77 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import gov.nasa.arc.astrobee.Kinematics;
+import gov.nasa.arc.astrobee.types.Point;
+import gov.nasa.arc.astrobee.types.Quaternion;
+import jp.jaxa.iss.kibo.rpc.api.KiboRpcApi;
+import org.opencv.core.Mat;
+
+/**
+ * MissionApi backed by the real Kibo-RPC api.
+ */
+class KiboMissionApi implements MissionApi {
+    private final KiboRpcApi api;
+
+    KiboMissionApi(KiboRpcApi api) {
+        this.api = api;
+    }
+
+    @Override
+    public void startMission() {
+        api.startMission();
+    }
+
+    @Override
+    public boolean moveTo(Point point, Quaternion quaternion, boolean printRobotPosition) {
+        return api.moveTo(point, quaternion, printRobotPosition).hasSucceeded();
+    }
+
+    @Override
+    public Pose getRobotPose() {
+        Kinematics kinematics = api.getRobotKinematics();
+        if (kinematics == null || kinematics.getPosition() == null || kinematics.getOrientation() == null) {
+            return null;
+        }
+        return new Pose(kinematics.getPosition(), kinematics.getOrientation());
+    }
+
+    @Override
+    public Mat getMatNavCam() {
+        return api.getMatNavCam();
+    }
+
+    @Override
+    public double[][] getNavCamIntrinsics() {
+        return api.getNavCamIntrinsics();
+    }
+
+    @Override
+    public void setAreaInfo(int areaId, String itemName, int number) {
+        api.setAreaInfo(areaId, itemName, number);
+    }
+
+    @Override
+    public void reportRoundingCompletion() {
+        api.reportRoundingCompletion();
+    }
+
+    @Override
+    public void notifyRecognitionItem() {
+        api.notifyRecognitionItem();
+    }
+
+    @Override
+    public void takeTargetItemSnapshot() {
+        api.takeTargetItemSnapshot();
+    }
+
+    @Override
+    public void saveMatImage(Mat image, String name) {
+        api.saveMatImage(image, name);
+    }
+
+    @Override
+    public void shutdownFactory() {
+        api.shutdownFactory();
+    }
+}
@@ -0,0 +1,16 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+/**
+ * Where the OpenCV-only perception classes log, so they build without the
+ * Android SDK. The services pass AndroidLogSink.INSTANCE; the desktop
+ * benchmarks pass their own.
+ */
+interface LogSink {
+    void info(String tag, String message);
+
+    /** error may be null. */
+    void warn(String tag, String message, Throwable error);
+
+    /** error may be null. */
+    void error(String tag, String message, Throwable error);
+}
@@ -0,0 +1,149 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.opencv.aruco.Aruco;
+import org.opencv.aruco.DetectorParameters;
+import org.opencv.aruco.Dictionary;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.core.TermCriteria;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Long-lived ArUco detector with a coarse-to-fine search.
+ *
+ * Markers are searched on a half-resolution grayscale pyramid level; the
+ * corners found there are scaled up and refined to subpixel accuracy with
+ * cornerSubPix on the full-resolution frame, which only touches a small
+ * window around each corner. If the coarse level finds fewer markers than
+ * the caller expects in view, the full frame is searched as well and the
+ * two results are merged, so small or distant markers are not lost next
+ * to a near one. Not thread-safe: use one instance per thread.
+ */
+class MarkerDetector {
+    private static final int REFINE_WINDOW = 5; // Half size of the cornerSubPix window at full resolution
+    private static final double DUPLICATE_DISTANCE = 10; // px at full resolution; closer centers are one marker
+
+    private final Dictionary dictionary = Aruco.getPredefinedDictionary(Aruco.DICT_5X5_250);
+    private final DetectorParameters parameters = DetectorParameters.create();
+    private final TermCriteria refineCriteria = new TermCriteria(TermCriteria.EPS + TermCriteria.COUNT, 20, 0.01);
+    private final Size refineWindow = new Size(REFINE_WINDOW, REFINE_WINDOW);
+    private final Size zeroZone = new Size(-1, -1);
+    private final Scalar coarseScale = new Scalar(2, 2);
+
+    private final Mat gray = new Mat();
+    private final Mat half = new Mat();
+    private final Mat ids = new Mat();
+    private final Mat fullIds = new Mat();
+    private final List<Mat> rawCorners = new ArrayList<>();
+    private final List<Mat> fullCorners = new ArrayList<>();
+
+    /** Corners of the last detection, one 1x4 CV_32FC2 Mat per marker, as Aruco returns them. */
+    final List<Mat> corners = new ArrayList<>();
+    /** IDs of the last detection, parallel to corners. */
+    int[] markerIds = new int[0];
+
+    MarkerDetector() {
+        // Two adaptive threshold passes (3 and 13 px) instead of three; the
+        // subpixel refinement below replaces the built-in one.
+        parameters.set_adaptiveThreshWinSizeMin(3);
+        parameters.set_adaptiveThreshWinSizeMax(13);
+        parameters.set_adaptiveThreshWinSizeStep(10);
+        parameters.set_cornerRefinementMethod(Aruco.CORNER_REFINE_NONE);
+    }
+
+    /**
+     * Detect markers in a frame where at least one is expected.
+     */
+    int detect(Mat image) {
+        return detect(image, 1);
+    }
+
+    /**
+     * Detect markers in a frame. Returns the number of markers found; the
+     * results are in corners and markerIds until the next call.
+     *
+     * @param expected markers that should be in view; fewer on the coarse
+     *                 level triggers the full-resolution search
+     */
+    int detect(Mat image, int expected) {
+        Mat full = image;
+        if (image.channels() > 1) {
+            Imgproc.cvtColor(image, gray, Imgproc.COLOR_BGR2GRAY);
+            full = gray;
+        }
+
+        Imgproc.pyrDown(full, half);
+        release(rawCorners);
+        Aruco.detectMarkers(half, dictionary, rawCorners, ids, parameters);
+
+        release(corners);
+        List<Integer> found = new ArrayList<>();
+        if (rawCorners.size() >= expected) {
+            for (int i = 0; i < rawCorners.size(); i++) {
+                add(full, rawCorners.get(i), (int) ids.get(i, 0)[0], true, found);
+            }
+        } else {
+            // Full resolution finds everything the coarse level does except, rarely, a marker
+            // too large for the threshold windows; keep those coarse ones that are not duplicates
+            release(fullCorners);
+            Aruco.detectMarkers(full, dictionary, fullCorners, fullIds, parameters);
+            for (int i = 0; i < fullCorners.size(); i++) {
+                add(full, fullCorners.get(i), (int) fullIds.get(i, 0)[0], false, found);
+            }
+            int fullCount = corners.size();
+            for (int i = 0; i < rawCorners.size(); i++) {
+                double[] center = center(rawCorners.get(i), 2);
+                boolean duplicate = false;
+                for (int j = 0; j < fullCount && !duplicate; j++) {
+                    double[] other = center(corners.get(j), 1);
+                    duplicate = Math.hypot(center[0] - other[0], center[1] - other[1]) < DUPLICATE_DISTANCE;
+                }
+                if (!duplicate) {
+                    add(full, rawCorners.get(i), (int) ids.get(i, 0)[0], true, found);
+                }
+            }
+        }
+
+        markerIds = new int[found.size()];
+        for (int i = 0; i < markerIds.length; i++) {
+            markerIds[i] = found.get(i);
+        }
+        return markerIds.length;
+    }
+
+    // Refine one marker's corners on the full-resolution frame and append it to the results
+    private void add(Mat full, Mat raw, int id, boolean coarse, List<Integer> found) {
+        MatOfPoint2f points = new MatOfPoint2f();
+        raw.reshape(2, 4).convertTo(points, CvType.CV_32FC2);
+        if (coarse) {
+            Core.multiply(points, coarseScale, points);
+        }
+        Imgproc.cornerSubPix(full, points, refineWindow, zeroZone, refineCriteria);
+        corners.add(points.reshape(2, 1));
+        found.add(id);
+    }
+
+    // Mean of the four corners of a 1x4 CV_32FC2 corner Mat, times scale
+    private static double[] center(Mat quad, double scale) {
+        double x = 0, y = 0;
+        for (int k = 0; k < 4; k++) {
+            double[] corner = quad.get(0, k);
+            x += corner[0];
+            y += corner[1];
+        }
+        return new double[]{x * scale / 4, y * scale / 4};
+    }
+
+    private static void release(List<Mat> mats) {
+        for (Mat mat : mats) {
+            mat.release();
+        }
+        mats.clear();
+    }
+}
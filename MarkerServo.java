@@ -0,0 +1,176 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import android.util.Log;
+import gov.nasa.arc.astrobee.types.Point;
+import gov.nasa.arc.astrobee.types.Quaternion;
+import java.util.List;
+import java.util.Locale;
+import org.opencv.aruco.Aruco;
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Closed-loop framing of an item sheet from its AR marker.
+ *
+ * The marker pose comes from estimatePoseSingleMarkers on the detected
+ * corners, and gives the sheet center and the sheet normal in the camera
+ * frame. The framing error has three parts: the sheet center's distance
+ * from the optical axis, its depth against STANDOFF, and the angle between
+ * the optical axis and the sheet normal. A correction move is commanded
+ * only when one of them is out of tolerance, and at most maxCorrections
+ * times. The correction re-centers the sheet at STANDOFF, and turns to
+ * face it squarely only when the angle itself is out of tolerance,
+ * because the rotation of a single 5 cm marker is the noisiest part of
+ * the estimate. Not thread-safe: use one instance per thread.
+ */
+class MarkerServo {
+    private static final String TAG = "MarkerServo";
+    private static final double STANDOFF = 0.7; // Camera to sheet, in meters
+    private static final double LATERAL_TOLERANCE = 0.05; // Sheet center off the optical axis, in meters
+    private static final double DEPTH_TOLERANCE = 0.2; // Around STANDOFF, in meters
+    private static final double ANGLE_TOLERANCE = Math.toRadians(15);
+    // Sheet center relative to the marker center, in the marker frame of estimatePoseSingleMarkers (x right, y up)
+    private static final double[] SHEET_OFFSET = {
+            (ItemSheetRoi.SHEET_LEFT + ItemSheetRoi.SHEET_RIGHT) / 2 - ItemSheetRoi.MARKER_SIZE / 2,
+            -((ItemSheetRoi.SHEET_TOP + ItemSheetRoi.SHEET_BOTTOM) / 2 - ItemSheetRoi.MARKER_SIZE / 2),
+            0};
+
+    static class Result {
+        final Pose pose;
+        final Mat frame; // The latest capture, owned by the caller
+        final int corrections;
+
+        Result(Pose pose, Mat frame, int corrections) {
+            this.pose = pose;
+            this.frame = frame;
+            this.corrections = corrections;
+        }
+    }
+
+    private final MissionApi mission;
+    private final MotionExecutor motion;
+    private final int maxCorrections;
+    private final MarkerDetector detector = new MarkerDetector();
+    private final Mat cameraMatrix = new Mat(3, 3, CvType.CV_64F);
+    private final Mat distCoeffs;
+    private final Mat rvecs = new Mat();
+    private final Mat tvecs = new Mat();
+    private final Mat rvec = new Mat(3, 1, CvType.CV_64F);
+    private final Mat rotation = new Mat();
+
+    /**
+     * @param intrinsics result of api.getNavCamIntrinsics(): {camera matrix (row-major 3x3), distortion coefficients}
+     */
+    MarkerServo(MissionApi mission, MotionExecutor motion, double[][] intrinsics, int maxCorrections) {
+        this.mission = mission;
+        this.motion = motion;
+        this.maxCorrections = maxCorrections;
+        cameraMatrix.put(0, 0, intrinsics[0]);
+        distCoeffs = new Mat(1, intrinsics[1].length, CvType.CV_64F);
+        distCoeffs.put(0, 0, intrinsics[1]);
+    }
+
+    /**
+     * Servo from the frame captured at pose. Takes ownership of frame: it
+     * comes back in the result, or is released when a correction replaces it.
+     */
+    Result align(String label, Pose pose, Mat frame) {
+        int corrections = 0;
+        while (true) {
+            double[] sheet = sheetInCamera(frame);
+            if (sheet == null) {
+                Log.i(TAG, label + ": no marker, keeping the current pose");
+                break;
+            }
+            double lateral = Math.hypot(sheet[0], sheet[1]);
+            double depthError = Math.abs(sheet[2] - STANDOFF);
+            double angle = Math.acos(Math.max(-1, Math.min(1, -sheet[5])));
+            Log.i(TAG, String.format(Locale.US, "%s: sheet %.3f m off axis, depth %.2f m, %.1f deg off normal",
+                    label, lateral, sheet[2], Math.toDegrees(angle)));
+            boolean reorient = angle > ANGLE_TOLERANCE;
+            if (lateral <= LATERAL_TOLERANCE && depthError <= DEPTH_TOLERANCE && !reorient) {
+                break;
+            }
+            if (corrections == maxCorrections) {
+                Log.w(TAG, label + ": still off after " + corrections + " corrections");
+                break;
+            }
+
+            Pose target = corrected(pose, sheet, reorient);
+            if (!KiboLayout.allowed(target.point.getX(), target.point.getY(), target.point.getZ())) {
+                Log.w(TAG, label + ": correction to " + target.point + " leaves the allowed space");
+                break;
+            }
+            corrections++;
+            if (!motion.moveTo(label + "-servo", target.point, target.quaternion)) {
+                Pose reported = mission.getRobotPose();
+                if (reported != null) pose = reported;
+                break;
+            }
+            pose = target;
+            if (frame != null) frame.release();
+            frame = mission.getMatNavCam();
+        }
+        return new Result(pose, frame, corrections);
+    }
+
+    // Sheet center and marker normal (toward the camera) in camera coordinates, or null without a frame or marker
+    private double[] sheetInCamera(Mat frame) {
+        if (frame == null || detector.detect(frame) == 0) {
+            return null;
+        }
+        // The largest marker is the nearest sheet
+        List<Mat> corners = detector.corners;
+        int best = 0;
+        double bestArea = -1;
+        for (int i = 0; i < corners.size(); i++) {
+            double area = Math.abs(Imgproc.contourArea(corners.get(i).reshape(2, 4)));
+            if (area > bestArea) {
+                bestArea = area;
+                best = i;
+            }
+        }
+        Aruco.estimatePoseSingleMarkers(corners.subList(best, best + 1), (float) ItemSheetRoi.MARKER_SIZE,
+                cameraMatrix, distCoeffs, rvecs, tvecs);
+        rvec.put(0, 0, rvecs.get(0, 0));
+        double[] t = tvecs.get(0, 0);
+        Calib3d.Rodrigues(rvec, rotation);
+        double[] r = new double[9];
+        rotation.get(0, 0, r);
+
+        double[] sheet = new double[6];
+        for (int row = 0; row < 3; row++) {
+            sheet[row] = r[row * 3] * SHEET_OFFSET[0] + r[row * 3 + 1] * SHEET_OFFSET[1] + r[row * 3 + 2] * SHEET_OFFSET[2] + t[row];
+            sheet[row + 3] = r[row * 3 + 2]; // Marker z axis
+        }
+        return sheet;
+    }
+
+    private static Pose corrected(Pose pose, double[] sheet, boolean reorient) {
+        double[] camera = NavCamGeometry.cameraPosition(pose);
+        double[] toSheet = NavCamGeometry.directionToWorld(pose.quaternion, new double[]{sheet[0], sheet[1], sheet[2]});
+        double[] center = {camera[0] + toSheet[0], camera[1] + toSheet[1], camera[2] + toSheet[2]};
+
+        Quaternion q = pose.quaternion;
+        double[] axis = NavCamGeometry.directionToWorld(q, new double[]{0, 0, 1});
+        if (reorient) {
+            // Look against the sheet normal, keeping the image's sideways axis as close as possible
+            double[] bx = NavCamGeometry.normalize(
+                    NavCamGeometry.directionToWorld(q, new double[]{-sheet[3], -sheet[4], -sheet[5]}));
+            double[] y = NavCamGeometry.rotate(q, new double[]{0, 1, 0}, false);
+            double d = NavCamGeometry.dot(y, bx);
+            double[] by = NavCamGeometry.normalize(new double[]{y[0] - d * bx[0], y[1] - d * bx[1], y[2] - d * bx[2]});
+            q = NavCamGeometry.quaternion(bx, by, NavCamGeometry.cross(bx, by));
+            axis = bx;
+        }
+
+        // Put the camera STANDOFF in front of the sheet center, then step back to the body origin
+        double[] offset = NavCamGeometry.rotate(q, NavCamGeometry.OFFSET, false);
+        return new Pose(new Point(
+                center[0] - STANDOFF * axis[0] - offset[0],
+                center[1] - STANDOFF * axis[1] - offset[1],
+                center[2] - STANDOFF * axis[2] - offset[2]), q);
+    }
+}
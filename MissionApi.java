@@ -0,0 +1,39 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import gov.nasa.arc.astrobee.types.Point;
+import gov.nasa.arc.astrobee.types.Quaternion;
+import org.opencv.core.Mat;
+
+/**
+ * The part of the Kibo-RPC api that the mission logic uses.
+ *
+ * KiboMissionApi forwards to the real api; MissionSimulator replays
+ * recorded frames so a mission can run without the official simulator.
+ */
+interface MissionApi {
+    void startMission();
+
+    /** Returns true if the move succeeded. */
+    boolean moveTo(Point point, Quaternion quaternion, boolean printRobotPosition);
+
+    /** Current pose from the robot kinematics, or null when it is not available. */
+    Pose getRobotPose();
+
+    /** Current NavCam image, or null when the capture failed. */
+    Mat getMatNavCam();
+
+    /** {camera matrix (row-major 3x3), distortion coefficients} */
+    double[][] getNavCamIntrinsics();
+
+    void setAreaInfo(int areaId, String itemName, int number);
+
+    void reportRoundingCompletion();
+
+    void notifyRecognitionItem();
+
+    void takeTargetItemSnapshot();
+
+    void saveMatImage(Mat image, String name);
+
+    void shutdownFactory();
+}
@@ -0,0 +1,36 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import android.content.Context;
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import jp.jaxa.iss.kibo.rpc.api.KiboRpcApi;
+
+/**
+ * Chooses the MissionApi a service runs against.
+ */
+final class MissionApiFactory {
+    private static final String TAG = "MissionApiFactory";
+    static final String REPLAY_DIR = "replay"; // Under getFilesDir()
+    static final String REPORT_FILE = "simulated_mission.txt";
+
+    private MissionApiFactory() {
+    }
+
+    /**
+     * The simulator when a replay directory is present in the app's files
+     * directory, otherwise the real api.
+     */
+    static MissionApi create(Context context, KiboRpcApi api) {
+        File replayDir = new File(context.getFilesDir(), REPLAY_DIR);
+        if (replayDir.isDirectory()) {
+            try {
+                return new MissionSimulator(replayDir, new File(context.getFilesDir(), REPORT_FILE),
+                        TravelTimeModel.DEFAULT, AndroidLogSink.INSTANCE);
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Could not load replay from " + replayDir.getAbsolutePath() + ", using the real api", e);
+            }
+        }
+        return new KiboMissionApi(api);
+    }
+}
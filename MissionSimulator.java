@@ -0,0 +1,278 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import gov.nasa.arc.astrobee.types.Point;
+import gov.nasa.arc.astrobee.types.Quaternion;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+
+/**
+ * Local stand-in for the Kibo-RPC api that replays recorded NavCam frames.
+ *
+ * A replay directory holds (lines starting with # are skipped):
+ *   frames.csv      x,y,z,qx,qy,qz,qw,file per recorded frame (file relative to the directory)
+ *   truth.csv       area,item,count for areas 1..4 and target,item for the astronaut's item
+ *   intrinsics.csv  optional; 9 camera-matrix values on line 1, distortion coefficients on line 2
+ *
+ * getMatNavCam() returns the frame recorded nearest to the current pose,
+ * cycling through frames recorded at the same pose. When no frame was
+ * recorded within MAX_FRAME_DISTANCE of the pose, the capture fails and
+ * returns null, like a failed NavCam capture, instead of serving a frame
+ * of somewhere else; the report counts those captures. moveTo() returns at
+ * once and advances a simulated clock by the TravelTimeModel estimate; it
+ * fails, at a fixed cost, when the target is outside the keep-in zones or
+ * inside a keep-out zone.
+ * The mission time is the real time spent between startMission() and
+ * shutdownFactory() plus the simulated move time. shutdownFactory()
+ * writes the time and score report.
+ *
+ * The simulator needs only OpenCV and the Astrobee value types, and logs
+ * through a LogSink, so it also runs on a desktop JVM; MissionApiFactory
+ * picks it on the robot.
+ */
+class MissionSimulator implements MissionApi {
+    private static final String TAG = "MissionSimulator";
+    private static final double FAILED_MOVE_SECONDS = 10; // Planner rejection and timeout
+    private static final double ROTATION_WEIGHT = 0.5; // Meters per radian when matching poses
+    private static final double MAX_FRAME_DISTANCE = 0.2; // Pose distance within which a recorded frame stands in
+    private static final double SNAPSHOT_RANGE = 1.5; // Max distance from an area for the snapshot to count
+    private static final double MISSION_LIMIT_SECONDS = 300;
+    // NavCam calibration from the Kibo-RPC simulator, used without intrinsics.csv
+    private static final double[][] DEFAULT_INTRINSICS = {
+            {523.105750, 0.0, 635.434258, 0.0, 534.765913, 500.335102, 0.0, 0.0, 1.0},
+            {-0.164787, 0.020375, -0.001572, -0.000369, 0.0}
+    };
+
+    private static class Frame {
+        final Point point;
+        final Quaternion quaternion;
+        final File file;
+
+        Frame(Point point, Quaternion quaternion, File file) {
+            this.point = point;
+            this.quaternion = quaternion;
+            this.file = file;
+        }
+    }
+
+    private final File reportFile;
+    private final LogSink log;
+    private final TravelTimeModel travelTime;
+    private final List<Frame> frames = new ArrayList<>();
+    private final Map<Integer, String> truthItems = new HashMap<>();
+    private final Map<Integer, Integer> truthCounts = new HashMap<>();
+    private String truthTarget;
+    private double[][] intrinsics = DEFAULT_INTRINSICS;
+
+    private Point point = KiboLayout.START_POINT;
+    private Quaternion quaternion = KiboLayout.START_QUATERNION;
+    private long startNanos;
+    private double simulatedSeconds;
+    private int moves;
+    private int failedMoves;
+    private int captures;
+    private int missedCaptures; // No frame recorded near the pose
+    private int frameCursor;
+    private final Map<Integer, String> reportedItems = new HashMap<>();
+    private final Map<Integer, Integer> reportedCounts = new HashMap<>();
+    private int snapshotArea;
+    private boolean roundingReported;
+    private boolean recognitionNotified;
+
+    MissionSimulator(File replayDir, File reportFile, TravelTimeModel travelTime, LogSink log) throws IOException {
+        this.reportFile = reportFile;
+        this.log = log;
+        this.travelTime = travelTime;
+        for (String[] row : readCsv(new File(replayDir, "frames.csv"))) {
+            frames.add(new Frame(
+                    new Point(Double.parseDouble(row[0]), Double.parseDouble(row[1]), Double.parseDouble(row[2])),
+                    new Quaternion(Float.parseFloat(row[3]), Float.parseFloat(row[4]), Float.parseFloat(row[5]), Float.parseFloat(row[6])),
+                    new File(replayDir, row[7].trim())));
+        }
+        if (frames.isEmpty()) {
+            throw new IOException("No frames in " + replayDir.getAbsolutePath());
+        }
+
+        File truth = new File(replayDir, "truth.csv");
+        if (truth.exists()) {
+            for (String[] row : readCsv(truth)) {
+                if (row[0].trim().equals("target")) {
+                    truthTarget = row[1].trim();
+                } else {
+                    int area = Integer.parseInt(row[0].trim());
+                    truthItems.put(area, row[1].trim());
+                    truthCounts.put(area, Integer.parseInt(row[2].trim()));
+                }
+            }
+        }
+
+        File calibration = new File(replayDir, "intrinsics.csv");
+        if (calibration.exists()) {
+            List<String[]> rows = readCsv(calibration);
+            intrinsics = new double[][]{toDoubles(rows.get(0)), toDoubles(rows.get(1))};
+        }
+        log.info(TAG, "Replaying " + frames.size() + " frames from " + replayDir.getAbsolutePath());
+    }
+
+    @Override
+    public void startMission() {
+        startNanos = System.nanoTime();
+        simulatedSeconds = 0;
+    }
+
+    @Override
+    public boolean moveTo(Point target, Quaternion targetQuat, boolean printRobotPosition) {
+        moves++;
+        if (!KiboLayout.allowed(target.getX(), target.getY(), target.getZ())) {
+            failedMoves++;
+            simulatedSeconds += FAILED_MOVE_SECONDS;
+            log.warn(TAG, "Move to " + target + " rejected: outside the keep-in zones or inside a keep-out zone", null);
+            return false;
+        }
+        simulatedSeconds += travelTime.seconds(point, quaternion, target, targetQuat);
+        point = target;
+        quaternion = targetQuat;
+        return true;
+    }
+
+    @Override
+    public Pose getRobotPose() {
+        return new Pose(point, quaternion);
+    }
+
+    @Override
+    public Mat getMatNavCam() {
+        captures++;
+        double best = Double.MAX_VALUE;
+        for (Frame frame : frames) {
+            best = Math.min(best, poseDistance(frame));
+        }
+        if (best > MAX_FRAME_DISTANCE) {
+            missedCaptures++;
+            log.warn(TAG, String.format(Locale.US, "No frame recorded near %s %s (nearest at pose distance %.2f), capture failed",
+                    point, quaternion, best), null);
+            return null;
+        }
+        // Cycle through the frames recorded at (almost) the nearest pose
+        List<Frame> nearest = new ArrayList<>();
+        for (Frame frame : frames) {
+            if (poseDistance(frame) <= best + 1e-3) nearest.add(frame);
+        }
+        Frame frame = nearest.get(frameCursor++ % nearest.size());
+        Mat image = Imgcodecs.imread(frame.file.getPath(), Imgcodecs.IMREAD_GRAYSCALE);
+        if (image.empty()) {
+            log.warn(TAG, "Could not read " + frame.file.getAbsolutePath(), null);
+        }
+        return image;
+    }
+
+    @Override
+    public double[][] getNavCamIntrinsics() {
+        return new double[][]{intrinsics[0].clone(), intrinsics[1].clone()};
+    }
+
+    @Override
+    public void setAreaInfo(int areaId, String itemName, int number) {
+        reportedItems.put(areaId, itemName);
+        reportedCounts.put(areaId, number);
+    }
+
+    @Override
+    public void reportRoundingCompletion() {
+        roundingReported = true;
+    }
+
+    @Override
+    public void notifyRecognitionItem() {
+        recognitionNotified = true;
+    }
+
+    @Override
+    public void takeTargetItemSnapshot() {
+        snapshotArea = 0;
+        double nearest = SNAPSHOT_RANGE;
+        for (int area = 1; area <= KiboLayout.AREAS.length; area++) {
+            double d = TravelTimeModel.distance(point, KiboLayout.areaCenter(area));
+            if (d < nearest) {
+                nearest = d;
+                snapshotArea = area;
+            }
+        }
+    }
+
+    @Override
+    public void saveMatImage(Mat image, String name) {
+        // Diagnostics are not kept during replay
+    }
+
+    @Override
+    public void shutdownFactory() {
+        double missionSeconds = (System.nanoTime() - startNanos) / 1e9 + simulatedSeconds;
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "Mission time: %.1f s (%.1f s simulated motion)%s%n", missionSeconds,
+                simulatedSeconds, missionSeconds > MISSION_LIMIT_SECONDS ? "  OVER LIMIT" : ""));
+        sb.append(String.format(Locale.US, "Moves: %d (%d failed), captures: %d (%d with no recorded frame nearby)%s%n",
+                moves, failedMoves, captures, missedCaptures, missedCaptures > 0 ? "  RECORDING INCOMPLETE" : ""));
+
+        int itemsCorrect = 0, countsCorrect = 0;
+        for (int area = 1; area <= KiboLayout.AREAS.length; area++) {
+            String reported = reportedItems.get(area);
+            String expected = truthItems.get(area);
+            boolean item = reported != null && reported.equals(expected);
+            boolean count = item && reportedCounts.get(area).equals(truthCounts.get(area));
+            if (item) itemsCorrect++;
+            if (count) countsCorrect++;
+            sb.append(String.format(Locale.US, "Area %d: reported %s x %s, expected %s x %s%n", area,
+                    reportedCounts.get(area), reported, truthCounts.get(area), expected));
+        }
+        String snapshotItem = truthItems.get(snapshotArea);
+        boolean targetFound = snapshotItem != null && snapshotItem.equals(truthTarget);
+        sb.append(String.format(Locale.US, "Rounding reported: %b, recognition notified: %b%n", roundingReported, recognitionNotified));
+        sb.append(String.format(Locale.US, "Snapshot at area %d (target %s): %s%n", snapshotArea, truthTarget, targetFound ? "correct" : "wrong"));
+        sb.append(String.format(Locale.US, "Score: %d/4 items, %d/4 counts, target %s%n",
+                itemsCorrect, countsCorrect, targetFound ? "found" : "missed"));
+
+        String report = sb.toString();
+        for (String line : report.split("\n")) {
+            log.info(TAG, line);
+        }
+        try (FileWriter writer = new FileWriter(reportFile)) {
+            writer.write(report);
+        } catch (IOException e) {
+            log.warn(TAG, "Could not write simulation report", e);
+        }
+    }
+
+    private double poseDistance(Frame frame) {
+        return TravelTimeModel.distance(point, frame.point)
+                + ROTATION_WEIGHT * TravelTimeModel.angle(quaternion, frame.quaternion);
+    }
+
+    private static List<String[]> readCsv(File file) throws IOException {
+        List<String[]> rows = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                rows.add(line.split(","));
+            }
+        }
+        return rows;
+    }
+
+    private static double[] toDoubles(String[] values) {
+        double[] result = new double[values.length];
+        for (int i = 0; i < values.length; i++) result[i] = Double.parseDouble(values[i].trim());
+        return result;
+    }
+}
@@ -0,0 +1,132 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import android.util.Log;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Per-stage latency counters and fixed-bucket histograms, kept per area.
+ *
+ * Usage: {@code long t = timer.start(); ... timer.stop(MissionTimer.MOVE, areaId, t);}
+ * Spans use System.nanoTime() and recording only touches preallocated
+ * long[] slots, so no objects are created per sample. Recording is
+ * synchronized because perception and motion run on different threads.
+ */
+class MissionTimer {
+    private static final String TAG = "MissionTimer";
+
+    // Stages
+    static final int MOVE = 0;
+    static final int NAVCAM = 1;
+    static final int MARKERS = 2;
+    static final int UNDISTORT = 3;
+    static final int PREPROCESS = 4;
+    static final int TFLITE = 5;
+    static final int TEMPLATE_MATCH = 6;
+    static final int DETECT_TOTAL = 7;
+    private static final String[] STAGE_NAMES = {
+            "moveTo", "getMatNavCam", "detectMarkers", "undistort",
+            "preprocess", "tflite", "templateMatch", "detectTotal"
+    };
+
+    // Area slots: 0 = not tied to an area, 1..4 = patrol areas, 5 = astronaut
+    static final int NO_AREA = 0;
+    static final int ASTRONAUT = 5;
+    private static final int AREAS = 6;
+
+    // Histogram bucket upper bounds in milliseconds; the last bucket is open-ended
+    private static final long[] BUCKET_MS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000};
+    private static final int BUCKETS = BUCKET_MS.length + 1;
+
+    private final long[] counts = new long[STAGE_NAMES.length * AREAS];
+    private final long[] totalNanos = new long[STAGE_NAMES.length * AREAS];
+    private final long[] maxNanos = new long[STAGE_NAMES.length * AREAS];
+    private final long[] histogram = new long[STAGE_NAMES.length * AREAS * BUCKETS];
+    private long missionStart = System.nanoTime();
+
+    /**
+     * Mark the mission clock start, i.e. the return of api.startMission().
+     */
+    void missionStarted() {
+        missionStart = System.nanoTime();
+    }
+
+    long start() {
+        return System.nanoTime();
+    }
+
+    void stop(int stage, int areaId, long startNanos) {
+        record(stage, areaId, System.nanoTime() - startNanos);
+    }
+
+    synchronized void record(int stage, int areaId, long nanos) {
+        int area = areaId >= 0 && areaId < AREAS ? areaId : NO_AREA;
+        int slot = stage * AREAS + area;
+        counts[slot]++;
+        totalNanos[slot] += nanos;
+        if (nanos > maxNanos[slot]) maxNanos[slot] = nanos;
+
+        long ms = nanos / 1000000;
+        int bucket = 0;
+        while (bucket < BUCKET_MS.length && ms >= BUCKET_MS[bucket]) bucket++;
+        histogram[slot * BUCKETS + bucket]++;
+    }
+
+    /**
+     * Log the summary and write it to dir/fileName. Call just before
+     * api.shutdownFactory().
+     */
+    synchronized void report(File dir, String fileName) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "Mission time: %.1f s%n", (System.nanoTime() - missionStart) / 1e9));
+        sb.append(String.format(Locale.US, "%-14s %-5s %6s %10s %9s %9s %9s%n",
+                "stage", "area", "count", "total_ms", "mean_ms", "p90_ms", "max_ms"));
+
+        for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+            long stageTotal = 0;
+            for (int area = 0; area < AREAS; area++) {
+                int slot = stage * AREAS + area;
+                if (counts[slot] == 0) continue;
+                stageTotal += totalNanos[slot];
+                sb.append(String.format(Locale.US, "%-14s %-5s %6d %10.1f %9.1f %9s %9.1f%n",
+                        STAGE_NAMES[stage], areaLabel(area), counts[slot],
+                        totalNanos[slot] / 1e6, totalNanos[slot] / 1e6 / counts[slot],
+                        percentileLabel(slot, 0.9), maxNanos[slot] / 1e6));
+            }
+            if (stageTotal > 0) {
+                sb.append(String.format(Locale.US, "%-14s %-5s %6s %10.1f%n", STAGE_NAMES[stage], "all", "", stageTotal / 1e6));
+            }
+        }
+
+        String report = sb.toString();
+        for (String line : report.split("\n")) {
+            Log.i(TAG, line);
+        }
+        try (FileWriter writer = new FileWriter(new File(dir, fileName))) {
+            writer.write(report);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write timing report", e);
+        }
+    }
+
+    // Upper bound of the bucket that holds the given percentile
+    private String percentileLabel(int slot, double percentile) {
+        long target = (long) Math.ceil(counts[slot] * percentile);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += histogram[slot * BUCKETS + bucket];
+            if (seen >= target) {
+                return bucket < BUCKET_MS.length ? "<" + BUCKET_MS[bucket] : ">=" + BUCKET_MS[BUCKET_MS.length - 1];
+            }
+        }
+        return "-";
+    }
+
+    private static String areaLabel(int area) {
+        if (area == NO_AREA) return "-";
+        if (area == ASTRONAUT) return "astro";
+        return String.valueOf(area);
+    }
+}
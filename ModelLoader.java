@@ -0,0 +1,80 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.util.Log;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Loads the TensorFlow Lite model as a read-only memory mapping that stays
+ * alive for the lifetime of the service; InterpreterPool builds its
+ * interpreters over it.
+ */
+class ModelLoader {
+    private static final String TAG = "ModelLoader";
+
+    private static MappedByteBuffer model;
+    private static String modelAsset;
+
+    private ModelLoader() {
+    }
+
+    /**
+     * Map the model asset without copying it onto the Java heap.
+     * Uses the asset file descriptor when the asset is stored uncompressed,
+     * otherwise extracts it once into getFilesDir() and maps that file.
+     */
+    static synchronized MappedByteBuffer mapModel(Context context, String assetName) throws IOException {
+        if (model != null && assetName.equals(modelAsset)) {
+            return model;
+        }
+        try (AssetFileDescriptor fd = context.getAssets().openFd(assetName);
+             FileInputStream inputStream = new FileInputStream(fd.getFileDescriptor());
+             FileChannel channel = inputStream.getChannel()) {
+            model = channel.map(FileChannel.MapMode.READ_ONLY, fd.getStartOffset(), fd.getDeclaredLength());
+            Log.i(TAG, "Mapped " + assetName + " from asset descriptor (" + model.capacity() + " bytes)");
+        } catch (FileNotFoundException e) {
+            // openFd() fails for compressed assets; fall back to a one-time extract.
+            File file = extractAsset(context, assetName);
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                 FileChannel channel = raf.getChannel()) {
+                model = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            Log.i(TAG, "Mapped " + assetName + " from " + file.getAbsolutePath() + " (" + model.capacity() + " bytes)");
+        }
+        modelAsset = assetName;
+        return model;
+    }
+
+    static synchronized void release() {
+        model = null;
+        modelAsset = null;
+    }
+
+    private static File extractAsset(Context context, String assetName) throws IOException {
+        File file = new File(context.getFilesDir(), assetName);
+        if (file.exists() && file.length() > 0) {
+            return file;
+        }
+        File tmp = new File(context.getFilesDir(), assetName + ".tmp");
+        try (InputStream is = context.getAssets().open(assetName);
+             FileOutputStream os = new FileOutputStream(tmp)) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = is.read(buffer)) != -1) os.write(buffer, 0, read);
+            os.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not move extracted model to " + file.getAbsolutePath());
+        }
+        return file;
+    }
+}
@@ -0,0 +1,203 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import android.util.Log;
+import gov.nasa.arc.astrobee.types.Point;
+import gov.nasa.arc.astrobee.types.Quaternion;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Runs moveTo with retries that depend on why the previous attempt failed.
+ *
+ * After a failed attempt the robot pose is read back. If the robot is at
+ * the target position and only the orientation is off by a few degrees,
+ * the next attempt commands the target at the orientation it reached
+ * instead, and success is reported with that orientation error. If the
+ * attempt got the robot noticeably closer, the next attempt splits the
+ * move: a translation to the target at the current orientation, then a
+ * rotation in place. If it made no progress, an intermediate waypoint is
+ * inserted, at the current orientation, before the full move is tried
+ * again: the point halfway to the target when KiboLayout allows it,
+ * otherwise the end of the first leg the WaypointPlanner finds. Without
+ * either, the move is simply retried. Every move is recorded with its
+ * attempts, duration and final pose error for report().
+ */
+class MotionExecutor {
+    private static final String TAG = "MotionExecutor";
+    private static final double POSITION_TOLERANCE = 0.05; // m; at the target for all purposes
+    private static final double RELAXED_ANGLE_TOLERANCE = Math.toRadians(10); // Still frames the item sheet
+    private static final double MIN_PROGRESS = 0.2; // Share of the remaining distance covered to count as progress
+
+    static class MoveRecord {
+        final String label;
+        final Point target;
+        int attempts;
+        double seconds;
+        double positionError = Double.NaN; // Unknown when the pose could not be read
+        double angleError = Double.NaN;
+        boolean succeeded;
+        final StringBuilder strategy = new StringBuilder();
+
+        MoveRecord(String label, Point target) {
+            this.label = label;
+            this.target = target;
+        }
+    }
+
+    private final MissionApi mission;
+    private final int maxAttempts;
+    private final WaypointPlanner planner; // Detours around the zones when halfway is not allowed; may be null
+    private final List<MoveRecord> records = new ArrayList<>();
+
+    MotionExecutor(MissionApi mission, int maxAttempts, WaypointPlanner planner) {
+        this.mission = mission;
+        this.maxAttempts = maxAttempts;
+        this.planner = planner;
+    }
+
+    boolean moveTo(String label, Point target, Quaternion quaternion) {
+        MoveRecord record = new MoveRecord(label, target);
+        records.add(record);
+        long start = System.nanoTime();
+        try {
+            Pose pose = mission.getRobotPose();
+            double remaining = pose == null ? Double.NaN : TravelTimeModel.distance(pose.point, target);
+            Quaternion command = quaternion; // Orientation of the next attempt's move to target
+            boolean rotateAfter = false; // Turn to quaternion in place once target is reached
+            while (record.attempts < maxAttempts) {
+                record.attempts++;
+                boolean moved = mission.moveTo(target, command, true);
+                if (moved && rotateAfter) {
+                    moved = mission.moveTo(target, quaternion, true);
+                }
+                if (moved) {
+                    record.succeeded = true;
+                    measure(record, mission.getRobotPose(), target, quaternion);
+                    if (command != quaternion && !rotateAfter) {
+                        Log.w(TAG, label + ": accepted with orientation off by "
+                                + String.format(Locale.US, "%.1f deg", Math.toDegrees(record.angleError)));
+                    }
+                    return true;
+                }
+                command = quaternion;
+                rotateAfter = false;
+
+                pose = mission.getRobotPose();
+                measure(record, pose, target, quaternion);
+                if (record.attempts == maxAttempts) {
+                    break;
+                }
+                if (pose == null) {
+                    note(record, "retry");
+                    continue;
+                }
+                if (record.positionError < POSITION_TOLERANCE && record.angleError < RELAXED_ANGLE_TOLERANCE) {
+                    // Hold the target at the orientation reached, which still frames the item sheet
+                    Log.w(TAG, label + ": orientation off by "
+                            + String.format(Locale.US, "%.1f deg", Math.toDegrees(record.angleError)) + ", relaxing it");
+                    note(record, "relaxed");
+                    command = pose.quaternion;
+                    continue;
+                }
+                boolean progressed = !Double.isNaN(remaining)
+                        && remaining - record.positionError > MIN_PROGRESS * remaining;
+                remaining = record.positionError;
+                if (progressed || record.positionError < POSITION_TOLERANCE) {
+                    // Translate at the current orientation, then rotate in place
+                    Log.w(TAG, label + ": attempt " + record.attempts + " stopped "
+                            + String.format(Locale.US, "%.2f m", record.positionError) + " short, resuming");
+                    note(record, "resume");
+                    command = pose.quaternion;
+                    rotateAfter = true;
+                    continue;
+                }
+                Point waypoint = intermediate(pose.point, target);
+                if (waypoint == null) {
+                    Log.w(TAG, label + ": no progress and no allowed waypoint, retrying");
+                    note(record, "retry");
+                    continue;
+                }
+                Log.w(TAG, label + ": no progress, going through " + waypoint);
+                note(record, "waypoint");
+                record.attempts++;
+                if (!mission.moveTo(waypoint, pose.quaternion, true)) {
+                    Log.w(TAG, label + ": intermediate waypoint failed too");
+                }
+                Pose after = mission.getRobotPose();
+                remaining = after == null ? Double.NaN : TravelTimeModel.distance(after.point, target);
+            }
+            Log.e(TAG, label + ": move failed after " + record.attempts + " attempts");
+            return false;
+        } finally {
+            record.seconds = (System.nanoTime() - start) / 1e9;
+        }
+    }
+
+    /** The record of the latest moveTo() call, or null before the first. */
+    MoveRecord lastRecord() {
+        return records.isEmpty() ? null : records.get(records.size() - 1);
+    }
+
+    void report(File dir, String fileName) {
+        StringBuilder sb = new StringBuilder();
+        int failed = 0, retried = 0;
+        double total = 0;
+        sb.append(String.format(Locale.US, "%-12s %-28s %8s %8s %8s %9s %-8s %s%n",
+                "move", "target", "attempts", "seconds", "pos_m", "angle_deg", "result", "strategy"));
+        for (MoveRecord r : records) {
+            if (!r.succeeded) failed++;
+            if (r.attempts > 1) retried++;
+            total += r.seconds;
+            sb.append(String.format(Locale.US, "%-12s %-28s %8d %8.1f %8.3f %9.1f %-8s %s%n",
+                    r.label, String.format(Locale.US, "(%.3f, %.3f, %.3f)", r.target.getX(), r.target.getY(), r.target.getZ()),
+                    r.attempts, r.seconds, r.positionError, Math.toDegrees(r.angleError),
+                    r.succeeded ? "ok" : "FAILED", r.strategy));
+        }
+        sb.append(String.format(Locale.US, "Moves: %d (%d retried, %d failed), %.1f s in motion%n",
+                records.size(), retried, failed, total));
+
+        String report = sb.toString();
+        for (String line : report.split("\n")) {
+            Log.i(TAG, line);
+        }
+        try (FileWriter writer = new FileWriter(new File(dir, fileName))) {
+            writer.write(report);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write motion report", e);
+        }
+    }
+
+    // Halfway to target if the zones allow it, else the end of the planned path's first leg, else null
+    private Point intermediate(Point from, Point target) {
+        Point halfway = new Point(
+                (from.getX() + target.getX()) / 2,
+                (from.getY() + target.getY()) / 2,
+                (from.getZ() + target.getZ()) / 2);
+        if (KiboLayout.allowed(halfway.getX(), halfway.getY(), halfway.getZ())) {
+            return halfway;
+        }
+        if (planner == null) {
+            return null;
+        }
+        List<Point> path = planner.plan(from, target);
+        // A single leg ends at target, which is the move that just failed
+        return path == null || path.size() < 2 ? null : path.get(0);
+    }
+
+    private static void measure(MoveRecord record, Pose pose, Point target, Quaternion quaternion) {
+        if (pose == null) {
+            return;
+        }
+        record.positionError = TravelTimeModel.distance(pose.point, target);
+        record.angleError = TravelTimeModel.angle(pose.quaternion, quaternion);
+    }
+
+    private static void note(MoveRecord record, String step) {
+        if (record.strategy.length() > 0) record.strategy.append(',');
+        record.strategy.append(step);
+    }
+}
@@ -0,0 +1,99 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import gov.nasa.arc.astrobee.types.Quaternion;
+
+/**
+ * Frames of the robot body and its NavCam. Vectors are double[3].
+ *
+ * The NavCam sits at OFFSET in the body frame. Its optical axis is body
+ * +x, image x is body +y and image y is body +z. A robot pose's quaternion
+ * rotates body vectors into the world frame.
+ */
+final class NavCamGeometry {
+    static final double[] OFFSET = {0.1177, -0.0422, -0.0826};
+
+    private NavCamGeometry() {
+    }
+
+    static double[] cameraPosition(Pose pose) {
+        double[] offset = rotate(pose.quaternion, OFFSET, false);
+        return new double[]{pose.point.getX() + offset[0], pose.point.getY() + offset[1], pose.point.getZ() + offset[2]};
+    }
+
+    /** World point to NavCam optical coordinates {x, y, depth}. */
+    static double[] toCamera(Pose pose, double[] world) {
+        double[] camera = cameraPosition(pose);
+        double[] body = rotate(pose.quaternion, new double[]{
+                world[0] - camera[0], world[1] - camera[1], world[2] - camera[2]}, true);
+        return new double[]{body[1], body[2], body[0]};
+    }
+
+    /** Direction in NavCam optical coordinates to the world frame. */
+    static double[] directionToWorld(Quaternion q, double[] camera) {
+        return rotate(q, new double[]{camera[2], camera[0], camera[1]}, false);
+    }
+
+    /** Rotate v by q, or by its inverse. */
+    static double[] rotate(Quaternion q, double[] v, boolean inverse) {
+        double n = Math.sqrt(q.getX() * q.getX() + q.getY() * q.getY() + q.getZ() * q.getZ() + q.getW() * q.getW());
+        double w = q.getW() / n, sign = inverse ? -1 : 1;
+        double[] u = {sign * q.getX() / n, sign * q.getY() / n, sign * q.getZ() / n};
+        // v' = v + 2w (u x v) + 2 u x (u x v)
+        double[] t = cross(u, v);
+        double[] t2 = cross(u, t);
+        return new double[]{v[0] + 2 * w * t[0] + 2 * t2[0], v[1] + 2 * w * t[1] + 2 * t2[1], v[2] + 2 * w * t[2] + 2 * t2[2]};
+    }
+
+    /** Orientation whose body axes are the given orthonormal world vectors. */
+    static Quaternion quaternion(double[] bx, double[] by, double[] bz) {
+        // Rotation matrix with columns bx, by, bz to quaternion
+        double m00 = bx[0], m01 = by[0], m02 = bz[0];
+        double m10 = bx[1], m11 = by[1], m12 = bz[1];
+        double m20 = bx[2], m21 = by[2], m22 = bz[2];
+        double trace = m00 + m11 + m22;
+        double qx, qy, qz, qw;
+        if (trace > 0) {
+            double s = 2 * Math.sqrt(trace + 1);
+            qw = s / 4;
+            qx = (m21 - m12) / s;
+            qy = (m02 - m20) / s;
+            qz = (m10 - m01) / s;
+        } else if (m00 > m11 && m00 > m22) {
+            double s = 2 * Math.sqrt(1 + m00 - m11 - m22);
+            qw = (m21 - m12) / s;
+            qx = s / 4;
+            qy = (m01 + m10) / s;
+            qz = (m02 + m20) / s;
+        } else if (m11 > m22) {
+            double s = 2 * Math.sqrt(1 + m11 - m00 - m22);
+            qw = (m02 - m20) / s;
+            qx = (m01 + m10) / s;
+            qy = s / 4;
+            qz = (m12 + m21) / s;
+        } else {
+            double s = 2 * Math.sqrt(1 + m22 - m00 - m11);
+            qw = (m10 - m01) / s;
+            qx = (m02 + m20) / s;
+            qy = (m12 + m21) / s;
+            qz = s / 4;
+        }
+        return new Quaternion((float) qx, (float) qy, (float) qz, (float) qw);
+    }
+
+    static double[] cross(double[] a, double[] b) {
+        return new double[]{a[1] * b[2] - a[2] * b[1], a[2] * b[0] - a[0] * b[2], a[0] * b[1] - a[1] * b[0]};
+    }
+
+    static double dot(double[] a, double[] b) {
+        return a[0] * b[0] + a[1] * b[1] + a[2] * b[2];
+    }
+
+    static double norm(double[] v) {
+        return Math.sqrt(dot(v, v));
+    }
+
+    static double[] normalize(double[] v) {
+        double n = norm(v);
+        return new double[]{v[0] / n, v[1] / n, v[2] / n};
+    }
+}
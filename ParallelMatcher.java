@@ -0,0 +1,166 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Runs matchTemplate for every (template, scale) pair of a TemplateBank on a
+ * fixed worker pool. The frame is shared read-only between workers; each
+ * worker keeps its own result Mat, released by shutdown(). Peaks are
+ * reduced in job order, so the output order depends only on the bank
+ * layout; a job that throws only drops its own (template, scale) result.
+ */
+class ParallelMatcher {
+    private static final String TAG = "ParallelMatcher";
+
+    private final LogSink log;
+    private final ExecutorService executor;
+    private final int parallelism;
+    private final List<Mat> resultMats = Collections.synchronizedList(new ArrayList<Mat>()); // One per worker
+    private final ThreadLocal<Mat> resultMat = new ThreadLocal<Mat>() {
+        @Override
+        protected Mat initialValue() {
+            Mat mat = new Mat();
+            resultMats.add(mat);
+            return mat;
+        }
+    };
+
+    /** Best peak of one (template, scale) job over all angles. */
+    static class Match {
+        final int template;
+        final int scale;
+        final int angle;
+        final double score;
+        final double x;
+        final double y;
+        final int width;
+        final int height;
+
+        Match(int template, int scale, int angle, double score, double x, double y, int width, int height) {
+            this.template = template;
+            this.scale = scale;
+            this.angle = angle;
+            this.score = score;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /**
+     * @param maxParallelism upper bound on worker threads, so matching can
+     *                       leave cores to the TFLite interpreter
+     */
+    ParallelMatcher(int maxParallelism, LogSink log) {
+        this.log = log;
+        parallelism = Math.max(1, Math.min(maxParallelism, Runtime.getRuntime().availableProcessors()));
+        executor = Executors.newFixedThreadPool(parallelism);
+        log.info(TAG, "Matching with " + parallelism + " worker threads");
+    }
+
+    int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Match every template variant in the bank against a grayscale frame.
+     * Returns one Match per (template, scale) job whose best score reaches
+     * the threshold, ordered by template index and then scale index.
+     */
+    List<Match> match(final Mat gray, final TemplateBank bank, final double threshold) {
+        final int scales = bank.scaleCount();
+        int jobs = bank.templateCount() * scales;
+
+        List<Callable<Match>> tasks = new ArrayList<>(jobs);
+        for (int job = 0; job < jobs; job++) {
+            final int template = job / scales;
+            final int scale = job % scales;
+            tasks.add(new Callable<Match>() {
+                @Override
+                public Match call() {
+                    return matchJob(gray, bank, template, scale);
+                }
+            });
+        }
+
+        List<Match> results = new ArrayList<>();
+        List<Future<Match>> futures;
+        try {
+            futures = executor.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn(TAG, "Template matching interrupted", e);
+            return results;
+        }
+        for (int job = 0; job < futures.size(); job++) {
+            Match match;
+            try {
+                match = futures.get(job).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.warn(TAG, "Template matching interrupted", e);
+                break;
+            } catch (ExecutionException e) {
+                log.error(TAG, "Matching template " + job / scales + " at scale " + job % scales + " failed", e.getCause());
+                continue;
+            }
+            if (match != null && match.score >= threshold) {
+                results.add(match);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Stop the workers and release their result Mats. The Mats are left
+     * to the garbage collector if a worker is still inside matchTemplate.
+     */
+    void shutdown() {
+        executor.shutdownNow();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                log.warn(TAG, "Workers still running, not releasing their result Mats", null);
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        synchronized (resultMats) {
+            for (Mat mat : resultMats) {
+                mat.release();
+            }
+            resultMats.clear();
+        }
+    }
+
+    private Match matchJob(Mat gray, TemplateBank bank, int template, int scale) {
+        Mat result = resultMat.get();
+        Match best = null;
+        for (int angle = 0; angle < bank.angleCount(); angle++) {
+            Mat variant = bank.get(template, scale, angle);
+            if (gray.width() < variant.width() || gray.height() < variant.height()) {
+                continue;
+            }
+            Imgproc.matchTemplate(gray, variant, result, Imgproc.TM_CCOEFF_NORMED);
+            Core.MinMaxLocResult mmr = Core.minMaxLoc(result);
+            if (best == null || mmr.maxVal > best.score) {
+                best = new Match(template, scale, angle, mmr.maxVal, mmr.maxLoc.x, mmr.maxLoc.y,
+                        variant.width(), variant.height());
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,105 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import android.util.Log;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.opencv.core.Mat;
+
+/**
+ * Overlaps perception of one area with the robot's move to the next.
+ *
+ * The mission thread captures frames, hands them to submit() and issues the
+ * next moveTo right away. Perception runs on a single worker thread, so a
+ * non-thread-safe interpreter is never used concurrently. Results are
+ * handed to the Reporter on the mission thread, strictly in submission
+ * order, whenever reportReady() or drain() is called.
+ */
+class PatrolPipeline<R> {
+    private static final String TAG = "PatrolPipeline";
+
+    interface Perception<R> {
+        /** Runs on the worker thread; frames is empty when the move to the area failed. */
+        R process(int areaId, List<Mat> frames);
+    }
+
+    interface Reporter<R> {
+        /** Runs on the mission thread. */
+        void report(int areaId, R result);
+    }
+
+    private static class Pending<R> {
+        final int areaId;
+        final Future<R> result;
+
+        Pending(int areaId, Future<R> result) {
+            this.areaId = areaId;
+            this.result = result;
+        }
+    }
+
+    private final Perception<R> perception;
+    private final Reporter<R> reporter;
+    private final ExecutorService worker = Executors.newSingleThreadExecutor();
+    private final Queue<Pending<R>> pending = new ArrayDeque<>();
+
+    PatrolPipeline(Perception<R> perception, Reporter<R> reporter) {
+        this.perception = perception;
+        this.reporter = reporter;
+    }
+
+    /**
+     * Queue the frames captured at one area for perception. The pipeline
+     * takes ownership of the frames and releases them once processed.
+     */
+    void submit(final int areaId, final List<Mat> frames) {
+        Future<R> result = worker.submit(new Callable<R>() {
+            @Override
+            public R call() {
+                try {
+                    return perception.process(areaId, frames);
+                } finally {
+                    for (Mat frame : frames) frame.release();
+                }
+            }
+        });
+        pending.add(new Pending<>(areaId, result));
+    }
+
+    /**
+     * Report every finished result at the head of the queue without blocking.
+     */
+    void reportReady() {
+        while (!pending.isEmpty() && pending.peek().result.isDone()) {
+            report(pending.poll());
+        }
+    }
+
+    /**
+     * Wait for and report all outstanding results, then stop the worker.
+     */
+    void drain() {
+        while (!pending.isEmpty()) {
+            report(pending.poll());
+        }
+        worker.shutdown();
+    }
+
+    private void report(Pending<R> next) {
+        R result = null;
+        try {
+            result = next.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.w(TAG, "Interrupted waiting for Area " + next.areaId, e);
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Perception failed for Area " + next.areaId, e.getCause());
+        }
+        reporter.report(next.areaId, result);
+    }
+}
@@ -0,0 +1,129 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import java.util.Arrays;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Collects above-threshold pixels of matchTemplate result maps and drops
+ * any point within minDistance of an already kept point.
+ *
+ * Points are visited in the same row-major, map-by-map order as the old
+ * per-pixel loop and filtered with the same greedy rule, so the kept count
+ * is identical. The result map is copied out with one bulk get into a reused
+ * float[], and neighbours are looked up in a uniform grid with cell size
+ * minDistance, which makes the filter O(n) instead of O(n^2).
+ */
+class PeakExtractor {
+    private static final int NONE = -1;
+
+    private final int minDistance;
+    private final int minDistanceSq;
+    private final int gridCols;
+    private final int gridRows;
+    private final int[] cellHead; // first kept point per cell, linked through next[]
+
+    private float[] values = new float[0];
+    private int[] xs = new int[64];
+    private int[] ys = new int[64];
+    private int[] next = new int[64];
+    private int count;
+
+    /**
+     * @param maxWidth    largest result map width that will be added
+     * @param maxHeight   largest result map height that will be added
+     * @param minDistance points closer than or equal to this (px) are duplicates
+     */
+    PeakExtractor(int maxWidth, int maxHeight, int minDistance) {
+        this.minDistance = minDistance;
+        this.minDistanceSq = minDistance * minDistance;
+        gridCols = maxWidth / minDistance + 1;
+        gridRows = maxHeight / minDistance + 1;
+        cellHead = new int[gridCols * gridRows];
+        Arrays.fill(cellHead, NONE);
+    }
+
+    void reset() {
+        for (int i = 0; i < count; i++) {
+            cellHead[(ys[i] / minDistance) * gridCols + xs[i] / minDistance] = NONE;
+        }
+        count = 0;
+    }
+
+    int count() {
+        return count;
+    }
+
+    /**
+     * Add every pixel of a CV_32FC1 result map whose value is greater than
+     * threshold, i.e. the pixels that survive THRESH_TOZERO.
+     */
+    void add(Mat result, float threshold) {
+        int cols = result.cols();
+        int rows = result.rows();
+        int total = cols * rows;
+        if (values.length < total) {
+            values = new float[total];
+        }
+        result.get(0, 0, values);
+
+        for (int y = 0, i = 0; y < rows; y++) {
+            for (int x = 0; x < cols; x++, i++) {
+                if (values[i] > threshold) {
+                    offer(x, y);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reset, then match every scale and angle of one bank template against
+     * a grayscale frame and add each result map whose best score reaches
+     * threshold. Returns the number of kept points. result is scratch space.
+     */
+    int matchTemplate(Mat gray, TemplateBank bank, int template, double threshold, Mat result) {
+        reset();
+        for (int scale = 0; scale < bank.scaleCount(); scale++) {
+            for (int angle = 0; angle < bank.angleCount(); angle++) {
+                Mat variant = bank.get(template, scale, angle);
+                if (gray.width() < variant.width() || gray.height() < variant.height()) {
+                    continue;
+                }
+                Imgproc.matchTemplate(gray, variant, result, Imgproc.TM_CCOEFF_NORMED);
+                if (Core.minMaxLoc(result).maxVal >= threshold) {
+                    add(result, (float) threshold);
+                }
+            }
+        }
+        return count;
+    }
+
+    private void offer(int x, int y) {
+        int cx = x / minDistance;
+        int cy = y / minDistance;
+        for (int gy = Math.max(cy - 1, 0); gy <= Math.min(cy + 1, gridRows - 1); gy++) {
+            for (int gx = Math.max(cx - 1, 0); gx <= Math.min(cx + 1, gridCols - 1); gx++) {
+                for (int p = cellHead[gy * gridCols + gx]; p != NONE; p = next[p]) {
+                    int dx = xs[p] - x;
+                    int dy = ys[p] - y;
+                    if (dx * dx + dy * dy <= minDistanceSq) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        if (count == xs.length) {
+            xs = Arrays.copyOf(xs, count * 2);
+            ys = Arrays.copyOf(ys, count * 2);
+            next = Arrays.copyOf(next, count * 2);
+        }
+        int cell = cy * gridCols + cx;
+        xs[count] = x;
+        ys[count] = y;
+        next[count] = cellHead[cell];
+        cellHead[cell] = count;
+        count++;
+    }
+}
@@ -0,0 +1,22 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import gov.nasa.arc.astrobee.types.Point;
+import gov.nasa.arc.astrobee.types.Quaternion;
+
+/**
+ * A robot pose: position and orientation in the world frame.
+ */
+class Pose {
+    final Point point;
+    final Quaternion quaternion;
+
+    Pose(Point point, Quaternion quaternion) {
+        this.point = point;
+        this.quaternion = quaternion;
+    }
+
+    @Override
+    public String toString() {
+        return point + " " + quaternion;
+    }
+}
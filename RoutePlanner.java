@@ -0,0 +1,155 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import gov.nasa.arc.astrobee.types.Point;
+import gov.nasa.arc.astrobee.types.Quaternion;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Chooses the patrol order and the viewing pose of every stop so that the
+ * expected mission travel time is smallest. A stop is one area, or a group
+ * of areas seen from the same pose (see ViewPlanner).
+ *
+ * The route is start, then every stop once in any order, then the
+ * astronaut, then one final leg back to the stop that holds the target
+ * item. That stop is unknown when the route is planned, so the final leg
+ * counts as its expectation, weighted by each stop's share of the areas.
+ * All pairwise travel times are precomputed over the WaypointPlanner legs
+ * the move will actually take, one TravelTimeModel move per leg, and
+ * the ordering is solved exactly with Held-Karp dynamic programming over
+ * (visited set, last stop, pose). The problem is small: at most four stops
+ * with a few candidate poses each.
+ */
+class RoutePlanner {
+    static class Route {
+        /** Stop numbers (index + 1) in visiting order. */
+        final int[] order;
+        /** Chosen viewing pose per stop, indexed by stop number - 1. */
+        final Pose[] poses;
+        final double expectedSeconds;
+
+        Route(int[] order, Pose[] poses, double expectedSeconds) {
+            this.order = order;
+            this.poses = poses;
+            this.expectedSeconds = expectedSeconds;
+        }
+    }
+
+    private static final double NO_PATH_SECONDS = 1e5; // Cost of a pair the waypoint planner cannot connect
+
+    private final TravelTimeModel travelTime;
+    private final WaypointPlanner waypoints;
+
+    RoutePlanner(TravelTimeModel travelTime, WaypointPlanner waypoints) {
+        this.travelTime = travelTime;
+        this.waypoints = waypoints;
+    }
+
+    /**
+     * @param candidates  candidate viewing poses per stop
+     * @param targetShare probability that the target item is at each stop
+     * @return the route, or null when there are no stops or a stop has no candidate pose
+     */
+    Route plan(Pose start, List<List<Pose>> candidates, double[] targetShare, Pose astronaut) {
+        int stops = candidates.size();
+        if (stops == 0) {
+            return null;
+        }
+        for (List<Pose> poses : candidates) {
+            if (poses.isEmpty()) return null;
+        }
+
+        // One node per (stop, pose)
+        List<Pose> nodes = new ArrayList<>();
+        List<Integer> nodeStop = new ArrayList<>();
+        for (int a = 0; a < stops; a++) {
+            for (Pose pose : candidates.get(a)) {
+                nodes.add(pose);
+                nodeStop.add(a);
+            }
+        }
+        int n = nodes.size();
+        double[][] cost = new double[n][n];
+        double[] fromStart = new double[n];
+        double[] toAstronaut = new double[n];
+        double[] finalLeg = new double[n]; // Expected share of the astronaut-to-target leg
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                cost[i][j] = seconds(nodes.get(i), nodes.get(j));
+            }
+            fromStart[i] = seconds(start, nodes.get(i));
+            toAstronaut[i] = seconds(nodes.get(i), astronaut);
+            finalLeg[i] = seconds(astronaut, nodes.get(i)) * targetShare[nodeStop.get(i)];
+        }
+
+        // best[mask][i]: cheapest path from start over the stops in mask, ending at node i
+        int full = (1 << stops) - 1;
+        double[][] best = new double[full + 1][n];
+        int[][] previous = new int[full + 1][n];
+        for (double[] row : best) Arrays.fill(row, Double.MAX_VALUE);
+        for (int i = 0; i < n; i++) {
+            best[1 << nodeStop.get(i)][i] = fromStart[i] + finalLeg[i];
+            previous[1 << nodeStop.get(i)][i] = -1;
+        }
+        for (int mask = 1; mask <= full; mask++) {
+            for (int i = 0; i < n; i++) {
+                if (best[mask][i] == Double.MAX_VALUE) continue;
+                for (int j = 0; j < n; j++) {
+                    int bit = 1 << nodeStop.get(j);
+                    if ((mask & bit) != 0) continue;
+                    double c = best[mask][i] + cost[i][j] + finalLeg[j];
+                    if (c < best[mask | bit][j]) {
+                        best[mask | bit][j] = c;
+                        previous[mask | bit][j] = i;
+                    }
+                }
+            }
+        }
+
+        int last = -1;
+        double total = Double.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+            if (best[full][i] == Double.MAX_VALUE) continue;
+            double c = best[full][i] + toAstronaut[i];
+            if (c < total) {
+                total = c;
+                last = i;
+            }
+        }
+        if (last < 0) {
+            return null;
+        }
+
+        // Walk the chain back from the last stop
+        int[] order = new int[stops];
+        Pose[] poses = new Pose[stops];
+        int mask = full;
+        for (int k = stops - 1, i = last; k >= 0; k--) {
+            int stop = nodeStop.get(i);
+            order[k] = stop + 1;
+            poses[stop] = nodes.get(i);
+            int prev = previous[mask][i];
+            mask &= ~(1 << stop);
+            i = prev;
+        }
+        return new Route(order, poses, total);
+    }
+
+    // Every leg is commanded at the goal orientation, so the rotation happens on the first one
+    private double seconds(Pose from, Pose to) {
+        List<Point> legs = waypoints.plan(from.point, to.point);
+        if (legs == null) {
+            return NO_PATH_SECONDS;
+        }
+        double total = 0;
+        Point point = from.point;
+        Quaternion quaternion = from.quaternion;
+        for (Point waypoint : legs) {
+            total += travelTime.seconds(point, quaternion, waypoint, to.quaternion);
+            point = waypoint;
+            quaternion = to.quaternion;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,67 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Serial multi-scale template vote: for every template of a TemplateBank,
+ * matches the upright variant at each scale against a grayscale frame,
+ * counts the scales whose best score is above the threshold and keeps the
+ * best score. Runs on the calling thread so it leaves the cores to the
+ * TFLite interpreter. Not thread-safe; release() frees the result Mat.
+ */
+class ScaleMatcher {
+    final int[] counts;
+    final double[] bestScores;
+    private final Mat result = new Mat();
+
+    ScaleMatcher(int templates) {
+        counts = new int[templates];
+        bestScores = new double[templates];
+    }
+
+    /**
+     * Match every template and scale of the bank. Returns false, with
+     * partial counts, when cancelled is set between two templates.
+     */
+    boolean match(Mat gray, TemplateBank bank, double threshold, AtomicBoolean cancelled) {
+        Arrays.fill(counts, 0);
+        Arrays.fill(bestScores, 0);
+        for (int t = 0; t < bank.templateCount(); t++) {
+            if (cancelled.get()) {
+                return false;
+            }
+            for (int scale = 0; scale < bank.scaleCount(); scale++) {
+                Imgproc.matchTemplate(gray, bank.get(t, scale, 0), result, Imgproc.TM_CCOEFF_NORMED);
+                double maxVal = Core.minMaxLoc(result).maxVal;
+                bestScores[t] = Math.max(bestScores[t], maxVal);
+                if (maxVal > threshold) {
+                    counts[t]++;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Template with the most matching scales, ties going to the higher best
+     * score, or -1 when no scale of any template matched.
+     */
+    int best() {
+        int best = -1;
+        for (int t = 0; t < counts.length; t++) {
+            if (counts[t] > 0 && (best < 0 || counts[t] > counts[best]
+                    || (counts[t] == counts[best] && bestScores[t] > bestScores[best]))) {
+                best = t;
+            }
+        }
+        return best;
+    }
+
+    void release() {
+        result.release();
+    }
+}
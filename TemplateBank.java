@@ -0,0 +1,200 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import java.util.List;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Every scaled and rotated grayscale template variant, built once at startup.
+ * The variants are stacked into one contiguous native Mat and handed out as
+ * submat views indexed by (template, scale, angle), so the per-frame loop
+ * only runs matchTemplate.
+ */
+class TemplateBank {
+    private final int templateCount;
+    private final int[] widths;
+    private final int[] angles;
+
+    private final Mat storage;
+    private final Mat maskStorage;
+    private final Mat[] views;
+    private final Mat[] maskViews;
+
+    // Per variant layout inside storage
+    final int[] rowOffsets;
+    final int[] variantWidths;
+    final int[] variantHeights;
+
+    /**
+     * Build the bank from source templates for widths widthMin..widthMax
+     * (step widthStep) and angles 0..360 (step angleStep).
+     * A width of 0 keeps the template at its original size.
+     */
+    TemplateBank(List<Mat> templates, int widthMin, int widthMax, int widthStep, int angleStep) {
+        this(templates, range(widthMin, widthMax, widthStep), range(0, 359, angleStep));
+    }
+
+    TemplateBank(List<Mat> templates, int[] widths, int[] angles) {
+        this.templateCount = templates.size();
+        this.widths = widths;
+        this.angles = angles;
+
+        int variants = templateCount * widths.length * angles.length;
+        rowOffsets = new int[variants];
+        variantWidths = new int[variants];
+        variantHeights = new int[variants];
+
+        // Lay out every variant first so the native buffer is allocated once
+        int totalRows = 0;
+        int maxWidth = 1;
+        for (int t = 0; t < templateCount; t++) {
+            Mat template = templates.get(t);
+            for (int s = 0; s < widths.length; s++) {
+                int width = widths[s] == 0 ? template.cols() : widths[s];
+                int height = scaledHeight(template, width);
+                for (int a = 0; a < angles.length; a++) {
+                    int i = index(t, s, a);
+                    rowOffsets[i] = totalRows;
+                    variantWidths[i] = width;
+                    variantHeights[i] = height;
+                    totalRows += height;
+                }
+                maxWidth = Math.max(maxWidth, width);
+            }
+        }
+
+        storage = new Mat(Math.max(totalRows, 1), maxWidth, CvType.CV_8UC1, Scalar.all(0));
+        maskStorage = new Mat(Math.max(totalRows, 1), maxWidth, CvType.CV_8UC1, Scalar.all(0));
+        views = new Mat[variants];
+        maskViews = new Mat[variants];
+        createViews();
+
+        Mat resized = new Mat();
+        Mat ones = new Mat();
+        for (int t = 0; t < templateCount; t++) {
+            Mat template = templates.get(t);
+            for (int s = 0; s < widths.length; s++) {
+                resizeImg(template, widths[s] == 0 ? template.cols() : widths[s], resized);
+                ones.create(resized.size(), CvType.CV_8UC1);
+                ones.setTo(Scalar.all(255));
+                for (int a = 0; a < angles.length; a++) {
+                    int i = index(t, s, a);
+                    rotImg(resized, angles[a], views[i]);
+                    rotImg(ones, angles[a], maskViews[i]);
+                }
+            }
+        }
+        resized.release();
+        ones.release();
+    }
+
+    /**
+     * Wrap variants that were laid out by a previous build, e.g. planes
+     * memory-mapped from TemplateCache.
+     */
+    TemplateBank(int templateCount, int[] widths, int[] angles, Mat storage, Mat maskStorage,
+                 int[] rowOffsets, int[] variantWidths, int[] variantHeights) {
+        this.templateCount = templateCount;
+        this.widths = widths;
+        this.angles = angles;
+        this.storage = storage;
+        this.maskStorage = maskStorage;
+        this.rowOffsets = rowOffsets;
+        this.variantWidths = variantWidths;
+        this.variantHeights = variantHeights;
+        views = new Mat[rowOffsets.length];
+        maskViews = new Mat[rowOffsets.length];
+        createViews();
+    }
+
+    int templateCount() {
+        return templateCount;
+    }
+
+    int scaleCount() {
+        return widths.length;
+    }
+
+    int angleCount() {
+        return angles.length;
+    }
+
+    int[] widths() {
+        return widths;
+    }
+
+    int[] angles() {
+        return angles;
+    }
+
+    Mat storage() {
+        return storage;
+    }
+
+    Mat maskStorage() {
+        return maskStorage;
+    }
+
+    int index(int template, int scale, int angle) {
+        return (template * widths.length + scale) * angles.length + angle;
+    }
+
+    /**
+     * Pre-scaled, pre-rotated template variant. The returned Mat is a view
+     * into the bank and must not be released or written to.
+     */
+    Mat get(int template, int scale, int angle) {
+        return views[index(template, scale, angle)];
+    }
+
+    /**
+     * Nonzero where the rotated variant holds template pixels rather than
+     * the black fill left by warpAffine.
+     */
+    Mat mask(int template, int scale, int angle) {
+        return maskViews[index(template, scale, angle)];
+    }
+
+    void release() {
+        storage.release();
+        maskStorage.release();
+    }
+
+    private void createViews() {
+        for (int i = 0; i < views.length; i++) {
+            Rect rect = new Rect(0, rowOffsets[i], variantWidths[i], variantHeights[i]);
+            views[i] = storage.submat(rect);
+            maskViews[i] = maskStorage.submat(rect);
+        }
+    }
+
+    private static int scaledHeight(Mat img, int width) {
+        return (int) (img.rows() * ((double) width / img.cols()));
+    }
+
+    // Resize image to the given width, keeping the aspect ratio
+    static void resizeImg(Mat img, int width, Mat dst) {
+        Imgproc.resize(img, dst, new Size(width, scaledHeight(img, width)));
+    }
+
+    // Rotate image around its center, keeping its size
+    static void rotImg(Mat img, int angle, Mat dst) {
+        org.opencv.core.Point center = new org.opencv.core.Point(img.cols() / 2.0, img.rows() / 2.0);
+        Mat rotatedMat = Imgproc.getRotationMatrix2D(center, angle, 1.0);
+        Imgproc.warpAffine(img, dst, rotatedMat, img.size());
+        rotatedMat.release();
+    }
+
+    static int[] range(int min, int max, int step) {
+        int n = (max - min) / step + 1;
+        int[] values = new int[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = min + i * step;
+        }
+        return values;
+    }
+}
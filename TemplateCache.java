@@ -0,0 +1,307 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import org.opencv.android.Utils;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Persists a TemplateBank as a versioned binary file in getFilesDir().
+ *
+ * Layout (little endian):
+ *   int magic, int version, long key,
+ *   int templateCount, int scaleCount, int angleCount, int rows, int cols,
+ *   templateCount x (short length, UTF-8 name),
+ *   int[scaleCount] widths, int[angleCount] angles,
+ *   variants x (int rowOffset, int width, int height),
+ *   rows x cols template plane, rows x cols mask plane.
+ *
+ * The key is a CRC of the asset names and sizes, the app version and
+ * install time, the decoder and the bank parameters, so a reinstalled APK
+ * or a changed scale list produces a new file without reading any asset.
+ * Later runs memory-map the planes and wrap them as Mats without decoding
+ * any PNG. A file that does not parse is deleted and rebuilt.
+ */
+class TemplateCache {
+    private static final String TAG = "TemplateCache";
+    private static final int MAGIC = 0x4B54504C; // "KTPL"
+    private static final int VERSION = 2;
+
+    /** How a template PNG becomes a grayscale Mat; match scores depend on it. */
+    enum Decoder {
+        /** BitmapFactory, Utils.bitmapToMat (premultiplied RGBA), then COLOR_BGR2GRAY. */
+        BITMAP,
+        /** Imgcodecs.imdecode with IMREAD_GRAYSCALE, the same as imread of the PNG file. */
+        IMREAD
+    }
+
+    private TemplateCache() {
+    }
+
+    /**
+     * Load the bank for the given asset names ("name.png"), from the cache
+     * when possible. Names of the templates actually loaded are appended to
+     * loadedNames in bank order; missing assets are skipped. Each service
+     * passes the decoder it used before the cache existed, so its template
+     * pixels, and with them its match scores, are unchanged.
+     */
+    static TemplateBank load(Context context, String[] names, Decoder decoder, int[] widths, int[] angles,
+                             List<String> loadedNames) {
+        List<String> present = new ArrayList<>();
+        List<Long> sizes = new ArrayList<>();
+        for (String name : names) {
+            try (InputStream is = context.getAssets().open(name + ".png")) {
+                sizes.add((long) is.available());
+                present.add(name);
+            } catch (IOException e) {
+                Log.e(TAG, "Template asset missing: " + name, e);
+            }
+        }
+
+        long key = computeKey(context, present, sizes, decoder, widths, angles);
+        File file = new File(context.getFilesDir(), String.format(Locale.US, "templates_%08x.bin", key));
+
+        if (file.exists()) {
+            try {
+                TemplateBank bank = map(file, key, loadedNames);
+                Log.i(TAG, "Mapped " + bank.templateCount() + " templates from " + file.getName());
+                return bank;
+            } catch (IOException e) {
+                Log.w(TAG, "Discarding unreadable template cache " + file.getName(), e);
+                file.delete();
+            }
+        }
+
+        List<Mat> templates = new ArrayList<>();
+        List<String> decodedNames = new ArrayList<>();
+        for (int i = 0; i < present.size(); i++) {
+            Mat template;
+            try {
+                template = decode(context, present.get(i) + ".png", decoder);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not read template: " + present.get(i), e);
+                continue;
+            }
+            if (template.empty()) {
+                Log.e(TAG, "Could not decode template: " + present.get(i));
+                continue;
+            }
+            templates.add(template);
+            decodedNames.add(present.get(i));
+        }
+
+        TemplateBank bank = new TemplateBank(templates, widths, angles);
+        for (Mat template : templates) {
+            template.release();
+        }
+        loadedNames.addAll(decodedNames);
+
+        try {
+            write(file, key, decodedNames, bank);
+            Log.i(TAG, "Wrote template cache " + file.getName() + " (" + file.length() + " bytes)");
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write template cache", e);
+        }
+        return bank;
+    }
+
+    private static TemplateBank map(File file, long key, List<String> loadedNames) throws IOException {
+        MappedByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            return parse(buffer, key, loadedNames);
+        } catch (RuntimeException e) {
+            // A truncated or corrupt header underflows the buffer or yields negative lengths
+            throw new IOException("Corrupt template cache", e);
+        }
+    }
+
+    private static TemplateBank parse(ByteBuffer buffer, long key, List<String> loadedNames) throws IOException {
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getLong() != key) {
+            throw new IOException("Stale or foreign template cache");
+        }
+        int templateCount = buffer.getInt();
+        int scaleCount = buffer.getInt();
+        int angleCount = buffer.getInt();
+        int rows = buffer.getInt();
+        int cols = buffer.getInt();
+
+        List<String> names = new ArrayList<>();
+        for (int t = 0; t < templateCount; t++) {
+            byte[] name = new byte[buffer.getShort()];
+            buffer.get(name);
+            names.add(new String(name, StandardCharsets.UTF_8));
+        }
+        int[] widths = readInts(buffer, scaleCount);
+        int[] angles = readInts(buffer, angleCount);
+
+        int variants = templateCount * scaleCount * angleCount;
+        int[] rowOffsets = new int[variants];
+        int[] variantWidths = new int[variants];
+        int[] variantHeights = new int[variants];
+        for (int i = 0; i < variants; i++) {
+            rowOffsets[i] = buffer.getInt();
+            variantWidths[i] = buffer.getInt();
+            variantHeights[i] = buffer.getInt();
+        }
+
+        if (rows <= 0 || cols <= 0 || buffer.remaining() != 2L * rows * cols) {
+            throw new IOException("Truncated template cache");
+        }
+        for (int i = 0; i < variants; i++) {
+            if (rowOffsets[i] < 0 || variantHeights[i] <= 0 || rowOffsets[i] + variantHeights[i] > rows
+                    || variantWidths[i] <= 0 || variantWidths[i] > cols) {
+                throw new IOException("Template variant " + i + " lies outside the cached planes");
+            }
+        }
+        int planeBytes = rows * cols;
+        Mat storage = new Mat(rows, cols, CvType.CV_8UC1, slice(buffer, planeBytes));
+        Mat maskStorage = new Mat(rows, cols, CvType.CV_8UC1, slice(buffer, planeBytes));
+
+        TemplateBank bank = new TemplateBank(templateCount, widths, angles, storage, maskStorage,
+                rowOffsets, variantWidths, variantHeights);
+        loadedNames.addAll(names);
+        return bank;
+    }
+
+    private static void write(File file, long key, List<String> names, TemplateBank bank) throws IOException {
+        Mat storage = bank.storage();
+        Mat maskStorage = bank.maskStorage();
+        int rows = storage.rows();
+        int cols = storage.cols();
+        int variants = bank.rowOffsets.length;
+
+        int headerBytes = 4 + 4 + 8 + 5 * 4 + 4 * (bank.scaleCount() + bank.angleCount()) + 12 * variants;
+        for (String name : names) {
+            headerBytes += 2 + name.getBytes(StandardCharsets.UTF_8).length;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(headerBytes).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putLong(key);
+        header.putInt(bank.templateCount()).putInt(bank.scaleCount()).putInt(bank.angleCount());
+        header.putInt(rows).putInt(cols);
+        for (String name : names) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            header.putShort((short) bytes.length).put(bytes);
+        }
+        for (int width : bank.widths()) header.putInt(width);
+        for (int angle : bank.angles()) header.putInt(angle);
+        for (int i = 0; i < variants; i++) {
+            header.putInt(bank.rowOffsets[i]).putInt(bank.variantWidths[i]).putInt(bank.variantHeights[i]);
+        }
+
+        byte[] plane = new byte[rows * cols];
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream os = new FileOutputStream(tmp)) {
+            os.write(header.array());
+            storage.get(0, 0, plane);
+            os.write(plane);
+            maskStorage.get(0, 0, plane);
+            os.write(plane);
+            os.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not move template cache into place");
+        }
+    }
+
+    private static long computeKey(Context context, List<String> names, List<Long> sizes, Decoder decoder,
+                                   int[] widths, int[] angles) {
+        long versionCode = 0, installed = 0;
+        try {
+            PackageInfo info = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+            versionCode = info.versionCode;
+            installed = info.lastUpdateTime; // Changes on every install, also for debug builds with one versionCode
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(TAG, "Own package not found; keying the template cache on the assets only", e);
+        }
+
+        CRC32 crc = new CRC32();
+        ByteBuffer ints = ByteBuffer.allocate(4 * (2 + widths.length + angles.length) + 8 * (2 + sizes.size()))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        ints.putInt(VERSION).putInt(decoder.ordinal());
+        ints.putLong(versionCode).putLong(installed);
+        for (int width : widths) ints.putInt(width);
+        for (int angle : angles) ints.putInt(angle);
+        for (long size : sizes) ints.putLong(size);
+        crc.update(ints.array());
+        for (String name : names) {
+            crc.update(name.getBytes(StandardCharsets.UTF_8));
+        }
+        return crc.getValue();
+    }
+
+    private static Mat decode(Context context, String assetName, Decoder decoder) throws IOException {
+        if (decoder == Decoder.BITMAP) {
+            Bitmap bitmap;
+            try (InputStream is = context.getAssets().open(assetName)) {
+                bitmap = BitmapFactory.decodeStream(is);
+            }
+            Mat mat = new Mat();
+            if (bitmap == null) {
+                return mat;
+            }
+            Utils.bitmapToMat(bitmap, mat);
+            bitmap.recycle();
+            Imgproc.cvtColor(mat, mat, Imgproc.COLOR_BGR2GRAY);
+            return mat;
+        }
+        MatOfByte encoded = new MatOfByte(readAsset(context, assetName));
+        Mat template = Imgcodecs.imdecode(encoded, Imgcodecs.IMREAD_GRAYSCALE);
+        encoded.release();
+        return template;
+    }
+
+    private static byte[] readAsset(Context context, String assetName) throws IOException {
+        try (InputStream is = context.getAssets().open(assetName)) {
+            ByteArrayOutputStream os = new ByteArrayOutputStream(Math.max(is.available(), 4096));
+            byte[] buffer = new byte[16 * 1024];
+            int read;
+            while ((read = is.read(buffer)) != -1) os.write(buffer, 0, read);
+            return os.toByteArray();
+        }
+    }
+
+    private static int[] readInts(ByteBuffer buffer, int n) {
+        int[] values = new int[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = buffer.getInt();
+        }
+        return values;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int length) {
+        ByteBuffer slice = buffer.slice();
+        slice.limit(length);
+        buffer.position(buffer.position() + length);
+        return slice;
+    }
+}
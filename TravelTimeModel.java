@@ -0,0 +1,136 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import gov.nasa.arc.astrobee.types.Point;
+import gov.nasa.arc.astrobee.types.Quaternion;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Expected duration of one moveTo: a fixed overhead (planning, settling,
+ * arrival checks) plus translation at a mean linear speed plus rotation at
+ * a mean angular speed.
+ *
+ * The three parameters can be calibrated by least squares from measured
+ * moves, each a {distance m, angle rad, seconds} sample. Samples are kept
+ * in a CSV file so each run calibrates from all the runs before it.
+ */
+class TravelTimeModel {
+    /** Rough Astrobee figures for moveTo in the Kibo-RPC simulator. */
+    static final TravelTimeModel DEFAULT = new TravelTimeModel(3.0, 0.1, 0.2);
+
+    private static final int MIN_SAMPLES = 6;
+
+    final double overheadSeconds;
+    final double linearSpeed; // m/s
+    final double angularSpeed; // rad/s
+
+    TravelTimeModel(double overheadSeconds, double linearSpeed, double angularSpeed) {
+        this.overheadSeconds = overheadSeconds;
+        this.linearSpeed = linearSpeed;
+        this.angularSpeed = angularSpeed;
+    }
+
+    double seconds(Point from, Quaternion fromQuat, Point to, Quaternion toQuat) {
+        return overheadSeconds + distance(from, to) / linearSpeed + angle(fromQuat, toQuat) / angularSpeed;
+    }
+
+    /**
+     * Fit the model to measured moves, or return fallback when there are
+     * too few samples or the fit is not physical.
+     */
+    static TravelTimeModel fit(List<double[]> samples, TravelTimeModel fallback) {
+        if (samples.size() < MIN_SAMPLES) {
+            return fallback;
+        }
+        // Normal equations of seconds = a + b * distance + c * angle
+        double[][] m = new double[3][4];
+        for (double[] sample : samples) {
+            double[] x = {1, sample[0], sample[1]};
+            for (int r = 0; r < 3; r++) {
+                for (int c = 0; c < 3; c++) m[r][c] += x[r] * x[c];
+                m[r][3] += x[r] * sample[2];
+            }
+        }
+        double[] p = solve(m);
+        if (p == null || p[0] < 0 || p[1] <= 0 || p[2] <= 0) {
+            return fallback;
+        }
+        return new TravelTimeModel(p[0], 1 / p[1], 1 / p[2]);
+    }
+
+    /** Samples saved by appendSamples(); empty if the file does not exist. */
+    static List<double[]> readSamples(File file) {
+        List<double[]> samples = new ArrayList<>();
+        if (!file.exists()) {
+            return samples;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] v = line.split(",");
+                if (v.length < 3) continue;
+                samples.add(new double[]{Double.parseDouble(v[0]), Double.parseDouble(v[1]), Double.parseDouble(v[2])});
+            }
+        } catch (IOException | NumberFormatException e) {
+            samples.clear();
+        }
+        return samples;
+    }
+
+    static void appendSamples(File file, List<double[]> samples) throws IOException {
+        try (FileWriter writer = new FileWriter(file, true)) {
+            for (double[] s : samples) {
+                writer.write(String.format(Locale.US, "%.4f,%.4f,%.3f%n", s[0], s[1], s[2]));
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%.2f s + d / %.3f m/s + angle / %.3f rad/s",
+                overheadSeconds, linearSpeed, angularSpeed);
+    }
+
+    static double distance(Point a, Point b) {
+        double dx = a.getX() - b.getX(), dy = a.getY() - b.getY(), dz = a.getZ() - b.getZ();
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    /** Rotation angle in radians between two orientations. */
+    static double angle(Quaternion a, Quaternion b) {
+        double dot = a.getX() * b.getX() + a.getY() * b.getY() + a.getZ() * b.getZ() + a.getW() * b.getW();
+        double norm = Math.sqrt(norm2(a) * norm2(b));
+        double cos = Math.min(1.0, Math.abs(dot) / norm);
+        return 2 * Math.acos(cos);
+    }
+
+    // Gauss-Jordan elimination with partial pivoting on an augmented 3x4 matrix
+    private static double[] solve(double[][] m) {
+        for (int col = 0; col < 3; col++) {
+            int pivot = col;
+            for (int r = col + 1; r < 3; r++) {
+                if (Math.abs(m[r][col]) > Math.abs(m[pivot][col])) pivot = r;
+            }
+            if (Math.abs(m[pivot][col]) < 1e-9) return null;
+            double[] tmp = m[col];
+            m[col] = m[pivot];
+            m[pivot] = tmp;
+            for (int r = 0; r < 3; r++) {
+                if (r == col) continue;
+                double f = m[r][col] / m[col][col];
+                for (int c = col; c < 4; c++) m[r][c] -= f * m[col][c];
+            }
+        }
+        return new double[]{m[0][3] / m[0][0], m[1][3] / m[1][1], m[2][3] / m[2][2]};
+    }
+
+    private static double norm2(Quaternion q) {
+        return q.getX() * q.getX() + q.getY() * q.getY() + q.getZ() * q.getZ() + q.getW() * q.getW();
+    }
+}
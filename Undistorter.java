@@ -0,0 +1,77 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Removes lens distortion with rectification maps built once per camera.
+ *
+ * The maps come from initUndistortRectifyMap in fixed-point CV_16SC2 form
+ * and are applied with remap into a pooled output Mat, so a frame no longer
+ * pays for map generation. rectify(image, roi) remaps only a sub-rectangle
+ * of the undistorted image. Not thread-safe: use one instance per thread.
+ */
+class Undistorter {
+    private final Mat cameraMatrix = new Mat(3, 3, CvType.CV_64F);
+    private final Mat distCoeffs = new Mat(1, 5, CvType.CV_64F);
+    private final Mat map1 = new Mat();
+    private final Mat map2 = new Mat();
+    private final Mat output = new Mat();
+    private Size mapSize;
+
+    /**
+     * @param intrinsics result of api.getNavCamIntrinsics() or getDockCamIntrinsics():
+     *                   {camera matrix (row-major 3x3), distortion coefficients}
+     */
+    Undistorter(double[][] intrinsics) {
+        cameraMatrix.put(0, 0, intrinsics[0]);
+        distCoeffs.put(0, 0, intrinsics[1]);
+    }
+
+    Mat getCameraMatrix() {
+        return cameraMatrix;
+    }
+
+    Mat getDistCoeffs() {
+        return distCoeffs;
+    }
+
+    /**
+     * Undistort the whole frame. The returned Mat is reused by the next call.
+     */
+    Mat undistort(Mat image) {
+        ensureMaps(image);
+        Imgproc.remap(image, output, map1, map2, Imgproc.INTER_LINEAR);
+        return output;
+    }
+
+    /**
+     * Undistort only roi (in undistorted image coordinates). The returned
+     * Mat has the size of roi and is reused by the next call.
+     */
+    Mat rectify(Mat image, Rect roi) {
+        ensureMaps(image);
+        Imgproc.remap(image, output, map1.submat(roi), map2.submat(roi), Imgproc.INTER_LINEAR);
+        return output;
+    }
+
+    void release() {
+        map1.release();
+        map2.release();
+        output.release();
+    }
+
+    private void ensureMaps(Mat image) {
+        Size size = image.size();
+        if (mapSize != null && mapSize.equals(size)) {
+            return;
+        }
+        Calib3d.initUndistortRectifyMap(cameraMatrix, distCoeffs, new Mat(), cameraMatrix,
+                size, CvType.CV_16SC2, map1, map2);
+        mapSize = size;
+    }
+}
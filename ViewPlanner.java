@@ -0,0 +1,312 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import gov.nasa.arc.astrobee.types.Point;
+import gov.nasa.arc.astrobee.types.Quaternion;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the fewest NavCam poses from which every area can be recognized.
+ *
+ * An area counts as seen from a pose when the corners of a SHEET_EXTENT
+ * square around the center of its plane (KiboLayout.AREAS) project inside
+ * the image, less a margin, through the NavCam intrinsics and distortion,
+ * and an AR marker anywhere in that square would still span
+ * minMarkerPixels. Like the hand-tuned patrol poses, this assumes the item
+ * sheet lies near the center of its area; whole areas are too large to
+ * fit in one frame from inside the keep-in zones. Rays wider than the image diagonal are
+ * rejected before distortion, where the polynomial model folds back.
+ * Candidates are the given per-area poses plus a grid of
+ * positions inside the keep-in zones aimed at every group of two or more
+ * areas. The smallest set of views covering all areas is then found
+ * exactly; there are only 15 non-empty area groups.
+ */
+class ViewPlanner {
+    private static final double MARKER_SIZE = ItemSheetRoi.MARKER_SIZE;
+    private static final double SHEET_EXTENT = 0.4; // Side of the square that must be in view, in meters; a sheet with its marker is 0.27 x 0.15
+    private static final double FRAME_MARGIN = 0.05; // Share of the image kept free at each border
+    private static final double GRID_STEP = 0.15; // Spacing of generated candidate positions, in meters
+    private static final double MIN_DEPTH = 0.2; // Closer than this is not a usable view
+    private static final int POSES_PER_VIEW = 4; // Best poses kept per area group, for the route planner to pick from
+
+    /** One stop of the patrol: areas recognized from the same frames, and poses that see them all. */
+    static class View {
+        final int[] areas;
+        final List<Pose> poses;
+        final double markerPixels; // Worst-case marker size over the areas from poses.get(0)
+
+        View(int[] areas, List<Pose> poses, double markerPixels) {
+            this.areas = areas;
+            this.poses = poses;
+            this.markerPixels = markerPixels;
+        }
+    }
+
+    private static class Candidate {
+        final Pose pose;
+        final double markerPixels;
+
+        Candidate(Pose pose, double markerPixels) {
+            this.pose = pose;
+            this.markerPixels = markerPixels;
+        }
+    }
+
+    private final double fx, fy, cx, cy;
+    private final double[] distortion;
+    private final int width, height;
+    private final double maxRadius; // Undistorted normalized radius of the image corners
+    private final double minMarkerPixels;
+
+    /**
+     * @param intrinsics result of api.getNavCamIntrinsics(): {camera matrix (row-major 3x3), distortion coefficients}
+     */
+    ViewPlanner(double[][] intrinsics, int width, int height, double minMarkerPixels) {
+        fx = intrinsics[0][0];
+        fy = intrinsics[0][4];
+        cx = intrinsics[0][2];
+        cy = intrinsics[0][5];
+        distortion = intrinsics[1];
+        this.width = width;
+        this.height = height;
+        this.minMarkerPixels = minMarkerPixels;
+        double rx = Math.max(cx, width - cx) / fx, ry = Math.max(cy, height - cy) / fy;
+        maxRadius = Math.sqrt(rx * rx + ry * ry);
+    }
+
+    /**
+     * @param candidates poses to try per area, indexed by area id - 1; an
+     *                   area no pose is verified for keeps these as its own view
+     */
+    List<View> plan(List<List<Pose>> candidates) {
+        int areas = KiboLayout.AREAS.length;
+        int full = (1 << areas) - 1;
+        List<List<Candidate>> byMask = new ArrayList<>();
+        for (int mask = 0; mask <= full; mask++) byMask.add(new ArrayList<Candidate>());
+
+        for (List<Pose> poses : candidates) {
+            for (Pose pose : poses) consider(pose, byMask);
+        }
+        for (Pose pose : generatedPoses(areas)) {
+            consider(pose, byMask);
+        }
+
+        int coverable = 0;
+        for (int mask = 1; mask <= full; mask++) {
+            if (!byMask.get(mask).isEmpty()) coverable |= mask;
+        }
+
+        // Smallest set of area groups covering every coverable area; ties go to the larger worst-case marker
+        List<Integer> masks = new ArrayList<>();
+        for (int mask = 1; mask <= full; mask++) {
+            if (!byMask.get(mask).isEmpty()) masks.add(mask);
+        }
+        List<Integer> best = null;
+        double bestPixels = -1;
+        for (int size = 1; size <= areas && best == null; size++) {
+            for (List<Integer> cover : combinations(masks, size)) {
+                int union = 0;
+                double pixels = Double.MAX_VALUE;
+                for (int mask : cover) {
+                    union |= mask;
+                    pixels = Math.min(pixels, byMask.get(mask).get(0).markerPixels);
+                }
+                if (union == coverable && (best == null || pixels > bestPixels)) {
+                    best = cover;
+                    bestPixels = pixels;
+                }
+            }
+            if (coverable == 0) break;
+        }
+
+        List<View> views = new ArrayList<>();
+        int assigned = 0;
+        if (best != null) {
+            for (int mask : best) {
+                int own = mask & ~assigned;
+                assigned |= own;
+                List<Candidate> group = byMask.get(mask);
+                List<Pose> poses = new ArrayList<>();
+                for (Candidate c : group) poses.add(c.pose);
+                views.add(new View(areasOf(own), poses, group.get(0).markerPixels));
+            }
+        }
+        for (int area = 1; area <= areas; area++) {
+            if ((assigned & (1 << (area - 1))) == 0) {
+                views.add(new View(new int[]{area}, candidates.get(area - 1), 0));
+            }
+        }
+        return views;
+    }
+
+    /**
+     * Distorted pixel {u, v} at which a world point appears from a pose, or
+     * null when it is behind the camera.
+     */
+    double[] pixel(Pose pose, Point world) {
+        return distort(NavCamGeometry.toCamera(pose, new double[]{world.getX(), world.getY(), world.getZ()}));
+    }
+
+    private double[] distort(double[] c) {
+        if (c[2] < MIN_DEPTH) return null;
+        double x = c[0] / c[2], y = c[1] / c[2];
+        double r2 = x * x + y * y;
+        double k1 = coefficient(0), k2 = coefficient(1), p1 = coefficient(2), p2 = coefficient(3), k3 = coefficient(4);
+        double radial = 1 + r2 * (k1 + r2 * (k2 + r2 * k3));
+        double xd = x * radial + 2 * p1 * x * y + p2 * (r2 + 2 * x * x);
+        double yd = y * radial + p1 * (r2 + 2 * y * y) + 2 * p2 * x * y;
+        return new double[]{fx * xd + cx, fy * yd + cy};
+    }
+
+    /** Smallest marker size in pixels around the area's center, or 0 when the sheet square is not fully in view. */
+    double markerPixels(Pose pose, int areaId) {
+        double[] box = KiboLayout.AREAS[areaId - 1];
+        int flat = box[0] == box[3] ? 0 : box[1] == box[4] ? 1 : 2;
+        int a = (flat + 1) % 3, b = (flat + 2) % 3;
+        double[] cameraPosition = NavCamGeometry.cameraPosition(pose);
+        double worst = Double.MAX_VALUE;
+        for (int corner = 0; corner < 4; corner++) {
+            double[] p = new double[3];
+            p[flat] = box[flat];
+            p[a] = halfExtent(box, a, (corner & 1) == 0 ? -1 : 1);
+            p[b] = halfExtent(box, b, (corner & 2) == 0 ? -1 : 1);
+
+            double[] c = NavCamGeometry.toCamera(pose, p);
+            if (c[2] < MIN_DEPTH || Math.hypot(c[0], c[1]) / c[2] > maxRadius) return 0;
+            double[] uv = distort(c);
+            double u = uv[0], v = uv[1];
+            if (u < FRAME_MARGIN * width || u > (1 - FRAME_MARGIN) * width
+                    || v < FRAME_MARGIN * height || v > (1 - FRAME_MARGIN) * height) {
+                return 0;
+            }
+            // Foreshortened marker: its short side shrinks with the cosine of the viewing angle
+            double[] ray = {cameraPosition[0] - p[0], cameraPosition[1] - p[1], cameraPosition[2] - p[2]};
+            double distance = Math.sqrt(ray[0] * ray[0] + ray[1] * ray[1] + ray[2] * ray[2]);
+            double cosine = Math.abs(ray[flat]) / distance;
+            worst = Math.min(worst, Math.min(fx, fy) * MARKER_SIZE * cosine / distance);
+        }
+        return worst;
+    }
+
+    // Center of the box along axis, moved half the sheet square toward one side but not past the box
+    private static double halfExtent(double[] box, int axis, int side) {
+        double center = (box[axis] + box[axis + 3]) / 2;
+        double half = Math.min(SHEET_EXTENT / 2, (box[axis + 3] - box[axis]) / 2);
+        return center + side * half;
+    }
+
+    private void consider(Pose pose, List<List<Candidate>> byMask) {
+        int mask = 0;
+        double pixels = Double.MAX_VALUE;
+        for (int area = 1; area <= KiboLayout.AREAS.length; area++) {
+            double p = markerPixels(pose, area);
+            if (p >= minMarkerPixels) {
+                mask |= 1 << (area - 1);
+                pixels = Math.min(pixels, p);
+            }
+        }
+        if (mask == 0) return;
+        // Keep the POSES_PER_VIEW poses with the largest worst-case marker for this group
+        List<Candidate> group = byMask.get(mask);
+        if (group.size() == POSES_PER_VIEW && group.get(POSES_PER_VIEW - 1).markerPixels >= pixels) return;
+        group.add(new Candidate(pose, pixels));
+        Collections.sort(group, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate x, Candidate y) {
+                return Double.compare(y.markerPixels, x.markerPixels);
+            }
+        });
+        if (group.size() > POSES_PER_VIEW) group.remove(POSES_PER_VIEW);
+    }
+
+    // Grid positions inside the keep-in zones, aimed at the middle of every group of two or more areas
+    private static List<Pose> generatedPoses(int areas) {
+        List<Pose> poses = new ArrayList<>();
+        Map<String, Boolean> seen = new HashMap<>();
+        for (double[] zone : KiboLayout.KEEP_IN_ZONES) {
+            for (double x = zone[0] + GRID_STEP / 2; x < zone[3]; x += GRID_STEP) {
+                for (double y = zone[1] + GRID_STEP / 2; y < zone[4]; y += GRID_STEP) {
+                    for (double z = zone[2] + GRID_STEP / 2; z < zone[5]; z += GRID_STEP) {
+                        if (!WaypointPlanner.clear(x, y, z)) continue;
+                        String key = Math.round(x * 100) + "," + Math.round(y * 100) + "," + Math.round(z * 100);
+                        if (seen.put(key, Boolean.TRUE) != null) continue;
+                        for (int mask = 1; mask < 1 << areas; mask++) {
+                            if (Integer.bitCount(mask) < 2) continue;
+                            double[] target = new double[3];
+                            int[] group = areasOf(mask);
+                            for (int area : group) {
+                                Point center = KiboLayout.areaCenter(area);
+                                target[0] += center.getX() / group.length;
+                                target[1] += center.getY() / group.length;
+                                target[2] += center.getZ() / group.length;
+                            }
+                            double[] axis = {target[0] - x, target[1] - y, target[2] - z};
+                            Point position = new Point(x, y, z);
+                            for (int roll = 0; roll < 2; roll++) {
+                                Quaternion q = lookAlong(axis, roll == 1);
+                                if (q != null) poses.add(new Pose(position, q));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return poses;
+    }
+
+    // Orientation whose body +x points along axis; the two rolls swap the image's long and short sides
+    private static Quaternion lookAlong(double[] axis, boolean rolled) {
+        double n = NavCamGeometry.norm(axis);
+        if (n < 1e-9) return null;
+        double[] bx = {axis[0] / n, axis[1] / n, axis[2] / n};
+        // Reference: the world axis least parallel to bx
+        int least = 0;
+        for (int i = 1; i < 3; i++) {
+            if (Math.abs(bx[i]) < Math.abs(bx[least])) least = i;
+        }
+        double[] r = new double[3];
+        r[least] = 1;
+        double dot = r[0] * bx[0] + r[1] * bx[1] + r[2] * bx[2];
+        double[] by = {r[0] - dot * bx[0], r[1] - dot * bx[1], r[2] - dot * bx[2]};
+        double m = NavCamGeometry.norm(by);
+        by = new double[]{by[0] / m, by[1] / m, by[2] / m};
+        if (rolled) by = NavCamGeometry.cross(bx, by);
+        double[] bz = NavCamGeometry.cross(bx, by);
+
+        return NavCamGeometry.quaternion(bx, by, bz);
+    }
+
+    private double coefficient(int i) {
+        return i < distortion.length ? distortion[i] : 0;
+    }
+
+    private static int[] areasOf(int mask) {
+        int[] areas = new int[Integer.bitCount(mask)];
+        for (int bit = 0, k = 0; k < areas.length; bit++) {
+            if ((mask & (1 << bit)) != 0) areas[k++] = bit + 1;
+        }
+        return areas;
+    }
+
+    private static List<List<Integer>> combinations(List<Integer> items, int size) {
+        List<List<Integer>> result = new ArrayList<>();
+        combine(items, size, 0, new ArrayList<Integer>(), result);
+        return result;
+    }
+
+    private static void combine(List<Integer> items, int size, int from, List<Integer> current, List<List<Integer>> result) {
+        if (current.size() == size) {
+            result.add(new ArrayList<>(current));
+            return;
+        }
+        for (int i = from; i < items.size(); i++) {
+            current.add(items.get(i));
+            combine(items, size, i + 1, current, result);
+            current.remove(current.size() - 1);
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import android.util.Log;
+import gov.nasa.arc.astrobee.types.Point;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Collision-free waypoints between two positions inside the keep-in zones.
+ *
+ * A straight line that stays inside KiboLayout's keep-in zones, with a
+ * clearance margin and outside every keep-out zone, is returned as is.
+ * Otherwise A* searches a 26-connected voxel grid over the keep-in zones,
+ * and the voxel path is shortened by string pulling into a few straight
+ * legs. Legs shorter than MIN_LEG are then merged into their neighbours
+ * where the merged leg is still inside the zones, without the margin. The
+ * margin is also waived near the endpoints, so poses on a zone face stay
+ * reachable. Paths are cached by start and goal (rounded to 1 cm)
+ * and can be saved, so repeat runs do not replan.
+ */
+class WaypointPlanner {
+    private static final String TAG = "WaypointPlanner";
+    private static final double RESOLUTION = 0.05; // Voxel edge in meters
+    private static final double CLEARANCE = 0.05; // Margin kept from zone faces away from the endpoints
+    private static final double STEP = 0.02; // Sampling interval when checking a segment
+    private static final double SNAP_RADIUS = 0.3; // How far an endpoint may be from its voxel
+    private static final double MIN_LEG = 0.2; // Shorter legs are merged when the zones allow; each moveTo has an overhead
+
+    private final double[] origin = new double[3];
+    private final int nx, ny, nz;
+    private final boolean[] free;
+    private final Map<String, List<Point>> cache = new HashMap<>();
+
+    WaypointPlanner() {
+        double[] max = new double[3];
+        Arrays.fill(origin, Double.MAX_VALUE);
+        Arrays.fill(max, -Double.MAX_VALUE);
+        for (double[] zone : KiboLayout.KEEP_IN_ZONES) {
+            for (int a = 0; a < 3; a++) {
+                origin[a] = Math.min(origin[a], zone[a]);
+                max[a] = Math.max(max[a], zone[a + 3]);
+            }
+        }
+        nx = (int) Math.ceil((max[0] - origin[0]) / RESOLUTION);
+        ny = (int) Math.ceil((max[1] - origin[1]) / RESOLUTION);
+        nz = (int) Math.ceil((max[2] - origin[2]) / RESOLUTION);
+        free = new boolean[nx * ny * nz];
+        for (int i = 0; i < free.length; i++) {
+            double[] c = center(i);
+            free[i] = clear(c[0], c[1], c[2]);
+        }
+    }
+
+    /**
+     * Waypoints after from, ending exactly at to; null when to is not
+     * allowed or no path exists.
+     */
+    List<Point> plan(Point from, Point to) {
+        String key = key(from, to);
+        List<Point> cached = cache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        List<Point> path = search(from, to);
+        if (path != null) {
+            cache.put(key, path);
+        }
+        return path;
+    }
+
+    /** Add the paths saved by save(); a missing file is not an error. */
+    void load(File file) {
+        if (!file.exists()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\\|");
+                if (parts.length != 2) continue;
+                List<Point> path = new ArrayList<>();
+                for (String waypoint : parts[1].split(";")) {
+                    String[] v = waypoint.split(",");
+                    path.add(new Point(Double.parseDouble(v[0]), Double.parseDouble(v[1]), Double.parseDouble(v[2])));
+                }
+                cache.put(parts[0], path);
+            }
+            Log.i(TAG, "Loaded " + cache.size() + " cached paths");
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Could not load cached paths from " + file.getAbsolutePath(), e);
+            cache.clear();
+        }
+    }
+
+    void save(File file) throws IOException {
+        try (FileWriter writer = new FileWriter(file)) {
+            for (Map.Entry<String, List<Point>> entry : cache.entrySet()) {
+                StringBuilder sb = new StringBuilder(entry.getKey()).append('|');
+                for (Point p : entry.getValue()) {
+                    if (sb.charAt(sb.length() - 1) != '|') sb.append(';');
+                    sb.append(String.format(Locale.US, "%.4f,%.4f,%.4f", p.getX(), p.getY(), p.getZ()));
+                }
+                writer.write(sb.append('\n').toString());
+            }
+        }
+    }
+
+    private List<Point> search(Point from, Point to) {
+        if (!KiboLayout.allowed(to.getX(), to.getY(), to.getZ())) {
+            Log.w(TAG, "Goal " + to + " is outside the allowed space");
+            return null;
+        }
+        double[] a = coordinates(from), b = coordinates(to);
+        if (segmentClear(a, b, a, b)) {
+            return Collections.singletonList(to);
+        }
+
+        int start = snap(a), goal = snap(b);
+        if (start < 0 || goal < 0) {
+            Log.w(TAG, "No free voxel near " + (start < 0 ? from : to));
+            return null;
+        }
+        int[] previous = aStar(start, goal);
+        if (previous == null) {
+            Log.w(TAG, "No path from " + from + " to " + to);
+            return null;
+        }
+
+        List<double[]> chain = new ArrayList<>();
+        chain.add(b);
+        for (int v = goal; v != -1; v = previous[v]) {
+            chain.add(center(v));
+        }
+        chain.add(a);
+        Collections.reverse(chain);
+
+        // String pulling: from each kept point, jump to the farthest point still in sight
+        List<Point> waypoints = new ArrayList<>();
+        int i = 0;
+        while (i < chain.size() - 1) {
+            int j = chain.size() - 1;
+            while (j > i + 1 && !segmentClear(chain.get(i), chain.get(j), a, b)) j--;
+            i = j;
+            waypoints.add(i == chain.size() - 1 ? to : toPoint(chain.get(i)));
+        }
+
+        // Merge short legs, typically the grid's stair steps around an inside corner
+        for (int k = 0; k < waypoints.size() - 1; ) {
+            double[] before = k == 0 ? a : coordinates(waypoints.get(k - 1));
+            double[] here = coordinates(waypoints.get(k));
+            double[] next = coordinates(waypoints.get(k + 1));
+            boolean shortLeg = distance(before, here) < MIN_LEG || distance(here, next) < MIN_LEG;
+            if (shortLeg && segmentAllowed(before, next)) {
+                waypoints.remove(k);
+            } else {
+                k++;
+            }
+        }
+        return waypoints;
+    }
+
+    private int[] aStar(int start, int goal) {
+        final double[] g = new double[free.length];
+        Arrays.fill(g, Double.MAX_VALUE);
+        int[] previous = new int[free.length];
+        boolean[] closed = new boolean[free.length];
+        final double[] goalCenter = center(goal);
+        PriorityQueue<double[]> open = new PriorityQueue<>(64, new Comparator<double[]>() {
+            @Override
+            public int compare(double[] x, double[] y) {
+                return Double.compare(x[0], y[0]);
+            }
+        });
+        g[start] = 0;
+        previous[start] = -1;
+        open.add(new double[]{distance(center(start), goalCenter), start});
+        while (!open.isEmpty()) {
+            int v = (int) open.poll()[1];
+            if (closed[v]) continue;
+            if (v == goal) return previous;
+            closed[v] = true;
+            int x = v % nx, y = (v / nx) % ny, z = v / (nx * ny);
+            for (int dz = -1; dz <= 1; dz++) {
+                for (int dy = -1; dy <= 1; dy++) {
+                    for (int dx = -1; dx <= 1; dx++) {
+                        int ux = x + dx, uy = y + dy, uz = z + dz;
+                        if ((dx | dy | dz) == 0 || ux < 0 || uy < 0 || uz < 0 || ux >= nx || uy >= ny || uz >= nz) continue;
+                        int u = index(ux, uy, uz);
+                        if (!free[u] || closed[u]) continue;
+                        double cost = g[v] + RESOLUTION * Math.sqrt(dx * dx + dy * dy + dz * dz);
+                        if (cost < g[u]) {
+                            g[u] = cost;
+                            previous[u] = v;
+                            open.add(new double[]{cost + distance(center(u), goalCenter), u});
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    // Nearest free voxel whose center can be reached from p in a straight line
+    private int snap(double[] p) {
+        int best = -1;
+        double bestDistance = SNAP_RADIUS;
+        int r = (int) Math.ceil(SNAP_RADIUS / RESOLUTION);
+        int cx = cell(p[0], 0), cy = cell(p[1], 1), cz = cell(p[2], 2);
+        for (int z = Math.max(0, cz - r); z <= Math.min(nz - 1, cz + r); z++) {
+            for (int y = Math.max(0, cy - r); y <= Math.min(ny - 1, cy + r); y++) {
+                for (int x = Math.max(0, cx - r); x <= Math.min(nx - 1, cx + r); x++) {
+                    int v = index(x, y, z);
+                    if (!free[v]) continue;
+                    double[] c = center(v);
+                    double d = distance(p, c);
+                    if (d < bestDistance && segmentClear(p, c, p, p)) {
+                        bestDistance = d;
+                        best = v;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    // Every sample keeps the clearance, except near the endpoints a and b where only the zones apply
+    private boolean segmentClear(double[] p, double[] q, double[] a, double[] b) {
+        int steps = Math.max(1, (int) Math.ceil(distance(p, q) / STEP));
+        for (int s = 0; s <= steps; s++) {
+            double t = (double) s / steps;
+            double x = p[0] + t * (q[0] - p[0]), y = p[1] + t * (q[1] - p[1]), z = p[2] + t * (q[2] - p[2]);
+            double[] sample = {x, y, z};
+            boolean nearEnd = distance(sample, a) < 2 * CLEARANCE || distance(sample, b) < 2 * CLEARANCE;
+            if (nearEnd ? !KiboLayout.allowed(x, y, z) : !clear(x, y, z)) return false;
+        }
+        return true;
+    }
+
+    private static boolean segmentAllowed(double[] p, double[] q) {
+        int steps = Math.max(1, (int) Math.ceil(distance(p, q) / STEP));
+        for (int s = 0; s <= steps; s++) {
+            double t = (double) s / steps;
+            if (!KiboLayout.allowed(p[0] + t * (q[0] - p[0]), p[1] + t * (q[1] - p[1]), p[2] + t * (q[2] - p[2]))) return false;
+        }
+        return true;
+    }
+
+    // Allowed with the clearance along each axis; zone faces are axis-aligned
+    static boolean clear(double x, double y, double z) {
+        return KiboLayout.allowed(x, y, z)
+                && KiboLayout.allowed(x - CLEARANCE, y, z) && KiboLayout.allowed(x + CLEARANCE, y, z)
+                && KiboLayout.allowed(x, y - CLEARANCE, z) && KiboLayout.allowed(x, y + CLEARANCE, z)
+                && KiboLayout.allowed(x, y, z - CLEARANCE) && KiboLayout.allowed(x, y, z + CLEARANCE);
+    }
+
+    private int cell(double value, int axis) {
+        int size = axis == 0 ? nx : axis == 1 ? ny : nz;
+        return Math.max(0, Math.min(size - 1, (int) Math.floor((value - origin[axis]) / RESOLUTION)));
+    }
+
+    private int index(int x, int y, int z) {
+        return x + nx * (y + ny * z);
+    }
+
+    private double[] center(int v) {
+        int x = v % nx, y = (v / nx) % ny, z = v / (nx * ny);
+        return new double[]{
+                origin[0] + (x + 0.5) * RESOLUTION,
+                origin[1] + (y + 0.5) * RESOLUTION,
+                origin[2] + (z + 0.5) * RESOLUTION};
+    }
+
+    private static double distance(double[] p, double[] q) {
+        double dx = p[0] - q[0], dy = p[1] - q[1], dz = p[2] - q[2];
+        return Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    private static double[] coordinates(Point p) {
+        return new double[]{p.getX(), p.getY(), p.getZ()};
+    }
+
+    private static Point toPoint(double[] p) {
+        return new Point(p[0], p[1], p[2]);
+    }
+
+    private static String key(Point from, Point to) {
+        return String.format(Locale.US, "%.2f,%.2f,%.2f>%.2f,%.2f,%.2f",
+                from.getX(), from.getY(), from.getZ(), to.getX(), to.getY(), to.getZ());
+    }
+}
@@ -0,0 +1,333 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
+
+/**
+ * Decodes the YOLOv8 detection head ([1, 4 + C, N] or [1, N, 4 + C]) into
+ * flat primitive arrays and runs class-aware NMS without per-box objects.
+ * All buffers are sized from the interpreter's tensors once and reused.
+ *
+ * Float32 and integer-quantized (uint8 or int8) models are both supported.
+ * A quantized output is gated on its raw levels; only the anchors that pass
+ * the confidence gate are dequantized.
+ */
+class YoloDetector {
+    static final int MAX_DETECTIONS = 100;
+
+    private final Interpreter interpreter;
+    private final int numClasses;
+    private final int numAnchors;
+    private final boolean anchorsLast; // true for [1, 4 + C, N]
+    private final boolean classifierHead; // rank-2 output, e.g. [1, C]
+    private final int inputWidth;
+    private final int inputHeight;
+    private final boolean channelsFirst;
+    private final DataType inputType;
+    private final float inputScale;
+    private final int inputZeroPoint;
+
+    private final ByteBuffer outputBuffer;
+    private final FloatBuffer outputView;
+    private final int outputLength; // Values per input
+    private final boolean quantizedOutput;
+    private final boolean signedOutput; // int8 rather than uint8
+    private final float outputScale;
+    private final int outputZeroPoint;
+    private final float[] raw; // Float models
+    private final byte[] rawQuantized; // Quantized models
+
+    // Batched runs: the input's batch dimension and an output buffer sized for it
+    private int batchSize = 1;
+    private ByteBuffer batchOutput;
+    private FloatBuffer batchView;
+
+    // Candidates that pass the confidence gate
+    private final float[] candBoxes;
+    private final float[] candScores;
+    private final int[] candClasses;
+    private final long[] sortKeys;
+
+    // Results after NMS, valid until the next call to detect()
+    final float[] boxes = new float[MAX_DETECTIONS * 4]; // x1, y1, x2, y2 in input pixels
+    final float[] scores = new float[MAX_DETECTIONS];
+    final int[] classes = new int[MAX_DETECTIONS];
+    final int[] classCounts;
+    int count;
+
+    float confThreshold = 0.25f;
+    float iouThreshold = 0.45f;
+
+    YoloDetector(Interpreter interpreter) {
+        this.interpreter = interpreter;
+
+        Tensor inputTensor = interpreter.getInputTensor(0);
+        inputType = inputTensor.dataType();
+        inputScale = inputTensor.quantizationParams().getScale();
+        inputZeroPoint = inputTensor.quantizationParams().getZeroPoint();
+
+        int[] inputShape = inputTensor.shape();
+        channelsFirst = inputShape[1] == 3;
+        if (channelsFirst) { // NCHW
+            inputHeight = inputShape[2];
+            inputWidth = inputShape[3];
+        } else { // NHWC
+            inputHeight = inputShape[1];
+            inputWidth = inputShape[2];
+        }
+
+        Tensor outputTensor = interpreter.getOutputTensor(0);
+        int[] outputShape = outputTensor.shape();
+        if (outputShape.length == 2) {
+            classifierHead = true;
+            anchorsLast = true;
+            numClasses = outputShape[1];
+            numAnchors = 1;
+        } else {
+            classifierHead = false;
+            anchorsLast = outputShape[1] < outputShape[2];
+            int channels = anchorsLast ? outputShape[1] : outputShape[2];
+            numAnchors = anchorsLast ? outputShape[2] : outputShape[1];
+            numClasses = channels - 4;
+        }
+
+        DataType outputType = outputTensor.dataType();
+        quantizedOutput = outputType == DataType.UINT8 || outputType == DataType.INT8;
+        signedOutput = outputType == DataType.INT8;
+        // A quantized output without quantization parameters reports scale 0; read it as 1/255 like the input
+        float scale = outputTensor.quantizationParams().getScale();
+        outputScale = quantizedOutput && scale <= 0 ? 1f / 255f : scale;
+        outputZeroPoint = outputTensor.quantizationParams().getZeroPoint();
+        outputLength = outputTensor.numElements();
+
+        outputBuffer = ByteBuffer.allocateDirect(outputTensor.numBytes());
+        outputBuffer.order(ByteOrder.nativeOrder());
+        outputView = outputBuffer.asFloatBuffer();
+        raw = quantizedOutput ? null : new float[outputLength];
+        rawQuantized = quantizedOutput ? new byte[outputLength] : null;
+
+        candBoxes = new float[numAnchors * 4];
+        candScores = new float[numAnchors];
+        candClasses = new int[numAnchors];
+        sortKeys = new long[numAnchors];
+        classCounts = new int[numClasses];
+    }
+
+    int getInputWidth() {
+        return inputWidth;
+    }
+
+    int getInputHeight() {
+        return inputHeight;
+    }
+
+    boolean isChannelsFirst() {
+        return channelsFirst;
+    }
+
+    int getNumClasses() {
+        return numClasses;
+    }
+
+    /** Element type of the input tensor: FLOAT32, UINT8 or INT8. */
+    DataType getInputType() {
+        return inputType;
+    }
+
+    /** Quantization scale of the input; 0 for a float input. */
+    float getInputScale() {
+        return inputScale;
+    }
+
+    int getInputZeroPoint() {
+        return inputZeroPoint;
+    }
+
+    /**
+     * Run the model on a preprocessed input and decode its output.
+     * Returns the number of detections kept after NMS.
+     */
+    int detect(ByteBuffer input) {
+        resizeBatch(1);
+        input.rewind();
+        outputBuffer.rewind();
+        interpreter.run(input, outputBuffer);
+        readOutput(outputBuffer, outputView, 0);
+        return decode();
+    }
+
+    /**
+     * Run the model once on batch preprocessed inputs packed back to back
+     * (see BatchPreprocessor). Read the detections of each input with
+     * decode(item); they stay available until the next run.
+     * Throws IllegalArgumentException if the model's batch size is fixed.
+     */
+    void runBatch(ByteBuffer input, int batch) {
+        resizeBatch(batch);
+        int bytes = interpreter.getOutputTensor(0).numBytes();
+        if (batchOutput == null || batchOutput.capacity() != bytes) {
+            batchOutput = ByteBuffer.allocateDirect(bytes);
+            batchOutput.order(ByteOrder.nativeOrder());
+            batchView = batchOutput.asFloatBuffer();
+        }
+        input.rewind();
+        batchOutput.rewind();
+        interpreter.run(input, batchOutput);
+    }
+
+    /**
+     * Decode the output of one input of the last runBatch() into boxes,
+     * scores and classes. Returns the number of detections kept after NMS.
+     */
+    int decode(int item) {
+        readOutput(batchOutput, batchView, item);
+        return decode();
+    }
+
+    // Copy the output of one input into raw or rawQuantized
+    private void readOutput(ByteBuffer buffer, FloatBuffer view, int item) {
+        if (quantizedOutput) {
+            buffer.position(item * outputLength);
+            buffer.get(rawQuantized);
+        } else {
+            view.position(item * outputLength);
+            view.get(raw);
+        }
+    }
+
+    private void resizeBatch(int batch) {
+        if (batch == batchSize) {
+            return;
+        }
+        int[] shape = interpreter.getInputTensor(0).shape().clone();
+        shape[0] = batch;
+        batchSize = -1; // Unknown until the resize succeeds, so a failed resize is retried
+        interpreter.resizeInput(0, shape);
+        interpreter.allocateTensors();
+        batchSize = batch;
+    }
+
+    private int decode() {
+        Arrays.fill(classCounts, 0);
+        count = 0;
+
+        // Raw levels are monotonic in the real value, so the gate compares them directly
+        float gate = quantizedOutput ? confThreshold / outputScale + outputZeroPoint : confThreshold;
+
+        if (classifierHead) {
+            int best = 0;
+            for (int c = 1; c < numClasses; c++) {
+                if (level(c) > level(best)) best = c;
+            }
+            if (level(best) >= gate) {
+                boxes[0] = 0;
+                boxes[1] = 0;
+                boxes[2] = inputWidth;
+                boxes[3] = inputHeight;
+                scores[0] = dequantize(level(best));
+                classes[0] = best;
+                classCounts[best] = 1;
+                count = 1;
+            }
+            return count;
+        }
+
+        // Confidence gate: best class per anchor, strided over the raw tensor
+        int n = 0;
+        float maxCoord = 0;
+        for (int a = 0; a < numAnchors; a++) {
+            int bestClass = 0;
+            float bestLevel = level(index(4, a));
+            for (int c = 1; c < numClasses; c++) {
+                float s = level(index(4 + c, a));
+                if (s > bestLevel) {
+                    bestLevel = s;
+                    bestClass = c;
+                }
+            }
+            if (bestLevel < gate) continue;
+            float bestScore = dequantize(bestLevel);
+
+            float cx = at(0, a), cy = at(1, a), w = at(2, a), h = at(3, a);
+            int o = n * 4;
+            candBoxes[o] = cx - w / 2;
+            candBoxes[o + 1] = cy - h / 2;
+            candBoxes[o + 2] = cx + w / 2;
+            candBoxes[o + 3] = cy + h / 2;
+            candScores[n] = bestScore;
+            candClasses[n] = bestClass;
+            // Scores are non-negative, so their IEEE bits sort in the same order
+            sortKeys[n] = ((long) Float.floatToIntBits(bestScore) << 32) | n;
+            if (cx > maxCoord) maxCoord = cx;
+            n++;
+        }
+        if (n == 0) return 0;
+
+        // Some exports emit normalized coordinates; bring them to input pixels
+        if (maxCoord <= 1.0f) {
+            for (int i = 0; i < n * 4; i += 2) {
+                candBoxes[i] *= inputWidth;
+                candBoxes[i + 1] *= inputHeight;
+            }
+        }
+
+        Arrays.sort(sortKeys, 0, n);
+
+        // Class-aware greedy NMS, highest score first
+        for (int k = n - 1; k >= 0 && count < MAX_DETECTIONS; k--) {
+            int i = (int) sortKeys[k];
+            int cls = candClasses[i];
+            int o = i * 4;
+            boolean suppressed = false;
+            for (int j = 0; j < count; j++) {
+                if (classes[j] == cls && iou(candBoxes, o, boxes, j * 4) > iouThreshold) {
+                    suppressed = true;
+                    break;
+                }
+            }
+            if (suppressed) continue;
+            System.arraycopy(candBoxes, o, boxes, count * 4, 4);
+            scores[count] = candScores[i];
+            classes[count] = cls;
+            classCounts[cls]++;
+            count++;
+        }
+        return count;
+    }
+
+    private int index(int channel, int anchor) {
+        return anchorsLast ? channel * numAnchors + anchor : anchor * (numClasses + 4) + channel;
+    }
+
+    // Value of one output element: the float itself, or the quantized level
+    private float level(int index) {
+        if (!quantizedOutput) return raw[index];
+        return signedOutput ? rawQuantized[index] : rawQuantized[index] & 0xFF;
+    }
+
+    private float dequantize(float level) {
+        return quantizedOutput ? (level - outputZeroPoint) * outputScale : level;
+    }
+
+    private float at(int channel, int anchor) {
+        return dequantize(level(index(channel, anchor)));
+    }
+
+    private static float iou(float[] a, int ao, float[] b, int bo) {
+        float ix1 = Math.max(a[ao], b[bo]);
+        float iy1 = Math.max(a[ao + 1], b[bo + 1]);
+        float ix2 = Math.min(a[ao + 2], b[bo + 2]);
+        float iy2 = Math.min(a[ao + 3], b[bo + 3]);
+        float iw = ix2 - ix1, ih = iy2 - iy1;
+        if (iw <= 0 || ih <= 0) return 0;
+        float inter = iw * ih;
+        float areaA = (a[ao + 2] - a[ao]) * (a[ao + 3] - a[ao + 1]);
+        float areaB = (b[bo + 2] - b[bo]) * (b[bo + 3] - b[bo + 1]);
+        return inter / (areaA + areaB - inter);
+    }
+}
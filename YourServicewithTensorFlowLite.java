@@ -1,26 +1,25 @@
 package jp.jaxa.iss.kibo.rpc.sampleapk;
 
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.util.Log;
 import gov.nasa.arc.astrobee.types.Point;
 import gov.nasa.arc.astrobee.types.Quaternion;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 import jp.jaxa.iss.kibo.rpc.api.KiboRpcService;
-import org.opencv.android.Utils;
 import org.opencv.core.Mat;
-import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 import org.opencv.core.Core;
-import org.opencv.aruco.Aruco;
-import org.opencv.aruco.Dictionary;
-import org.opencv.calib3d.Calib3d;
-import org.opencv.core.CvType;
 import org.tensorflow.lite.Interpreter;
 
 public class YourService extends KiboRpcService {
@@ -28,14 +27,58 @@ public class YourService extends KiboRpcService {
     private final String TAG = getClass().getSimpleName();
     private final String[] TEMPLATE_NAMES = {"crystal", "emerald", "treasure_box", "coin", "compass", "coral", "fossil", "key", "letter", "shell"};
     private List<PatrolResult> patrolResults = new ArrayList();
-    private List<Mat> templates = new ArrayList();
+    private List<String> templateNames = new ArrayList<>();
+    private TemplateBank templateBank; // Template widths 20..80 px, step 15, upright only
 
     // TensorFlow Lite variables
-    private Interpreter tfliteInterpreter;
-    private static final int INPUT_SIZE = 224; // Adjust based on your model
-    private static final int NUM_CLASSES = 10; // Number of treasure items
-    private static final int CHANNELS = 3; // RGB
+    private InterpreterPool interpreterPool;
+    private static final String MODEL_ASSET = "best.tflite";
+    private static final String INT8_MODEL_ASSET = "best_int8.tflite"; // Full-integer export of the same model
+    private static final String MODEL_CHOICE_FILE = "model_choice.txt"; // Under getFilesDir(): "float" or "int8"
+    private static final int MAX_INTERPRETERS = 2; // A cancelled inference can still be finishing while the next one starts
+    private static final int BENCHMARK_RUNS = 2; // Timed inferences per thread configuration, before the mission clock starts
+    private final Map<Interpreter, TFLiteSession> tfliteSessions = new IdentityHashMap<>(); // Filled once, read-only after
+    // Class order of the Roboflow dataset used in Train_Kibo_YoloV8.ipynb (alphabetical)
+    private static final String[] MODEL_LABELS = {"coin", "compass", "coral", "crystal", "diamond", "emerald", "fossil", "key", "letter", "shell", "treasure_box"};
     private String astronautTargetItem = ""; // What the astronaut is looking for
+    private MissionApi mission; // The real api, or the replay simulator when a replay directory is installed
+    private DiagnosticsWriter diagnostics;
+    private final MissionTimer timer = new MissionTimer();
+    private PatrolPipeline<PatrolResult> patrolPipeline;
+    private double[][] navCamIntrinsics; // Fetched once on the mission thread
+    private Undistorter undistorter; // Used on the patrol worker only
+    private ItemSheetRoi itemSheetRoi; // Used on the patrol worker only
+    private final MarkerDetector markerDetector = new MarkerDetector(); // Used on the patrol worker only
+    private static final int BURST_FRAMES = 3; // Frames captured per area
+    private static final long STALE_RETRY_MS = 100; // Wait before capturing again after NavCam repeated the previous image
+    private static final int MAX_STALE_CAPTURES = 2; // Extra captures per frame when NavCam returns the previous image again
+    private static final float DECISIVE_MARGIN = 0.8f; // Fused-score lead that ends a burst early
+    private final BurstVoter burstVoter = new BurstVoter(MODEL_LABELS.length, DECISIVE_MARGIN);
+    private static final float TEMPLATE_MATCH_THRESHOLD = 0.6f; // TM_CCOEFF_NORMED score that counts as a match
+    private static final long FRAME_BUDGET_MS = 600; // Above this expected cascade time, detectors run concurrently
+    private DetectorCascade<TFLiteResult> detectorCascade;
+    private DetectorCascade.Stage<TFLiteResult> tfliteStage; // Batched burst inference is counted against it
+    private volatile boolean batchUnsupported; // Set when the model rejects a batch dimension
+    // TensorFlow Lite results computed for a whole burst in one call, keyed by cascade tag. Not keyed by
+    // crop: when the cascade runs its stages concurrently they get a copy of the crop
+    private final Map<Integer, TFLiteResult> prefetchedTFLite = new HashMap<>();
+    private static final int FRAME_TAGS = 16; // Cascade tag: areaId * FRAME_TAGS, plus burst frame index + 1 in a burst
+    private static final String MOVE_SAMPLES_FILE = "move_durations.csv"; // {distance, angle, seconds} of past moves
+    private static final int NAVCAM_WIDTH = 1280;
+    private static final int NAVCAM_HEIGHT = 960;
+    private static final double MIN_MARKER_PIXELS = 16; // Smallest AR marker side the full-frame ArUco pass still finds
+    private List<ViewPlanner.View> views; // Patrol stops; one pose may serve several areas
+    private RoutePlanner.Route route;
+    private final Pose[] areaPoses = new Pose[KiboLayout.AREAS.length]; // Planned pose that sees each area
+    private final double[][] areaPixels = new double[KiboLayout.AREAS.length][]; // Expected area center in frames shared by several areas
+    private final int[] areaMarkers = new int[KiboLayout.AREAS.length]; // AR markers in view at each area's stop
+    // Sheet center to marker center is about two marker widths; areas sharing a frame are far more apart
+    private static final double MARKER_MATCH_WIDTHS = 4;
+    private Pose currentPose = new Pose(KiboLayout.START_POINT, KiboLayout.START_QUATERNION);
+    private final List<double[]> moveSamples = new ArrayList<>();
+    private static final String WAYPOINT_CACHE_FILE = "waypoint_paths.txt"; // Planned paths kept across runs
+    private WaypointPlanner waypointPlanner;
+    private MotionExecutor motion;
 
     private class PatrolResult {
         int areaId;
@@ -49,130 +92,221 @@ public class YourService extends KiboRpcService {
         }
     }
 
+    // Decoder and input buffer that belong to one pooled interpreter
+    private static class TFLiteSession {
+        final YoloDetector detector;
+        final TensorPreprocessor preprocessor;
+        BatchPreprocessor batch; // Created on the first batched run
+
+        TFLiteSession(Interpreter interpreter) {
+            detector = new YoloDetector(interpreter);
+            preprocessor = new TensorPreprocessor(detector);
+        }
+    }
+
     // Helper class for TensorFlow Lite results
     private class TFLiteResult {
         String className;
         float confidence;
         int classIndex;
+        int count;
 
         TFLiteResult(String className, float confidence, int classIndex) {
+            this(className, confidence, classIndex, 1);
+        }
+
+        TFLiteResult(String className, float confidence, int classIndex, int count) {
             this.className = className;
             this.confidence = confidence;
             this.classIndex = classIndex;
+            this.count = count;
         }
     }
 
-    @Override
-    public void onCreate() {
-        super.onCreate();
-        initializeTensorFlowLite();
-    }
-
     /**
-     * Initialize TensorFlow Lite interpreter
+     * Initialize the pool of TensorFlow Lite interpreters over the memory-mapped model.
+     * Benchmarks thread counts and warms the interpreters up, so it runs before startMission.
      */
     private void initializeTensorFlowLite() {
         try {
-            Log.i(TAG, "Loading TensorFlow Lite model...");
-            InputStream inputStream = getAssets().open("best.tflite");
-            byte[] modelBytes = new byte[inputStream.available()];
-            inputStream.read(modelBytes);
-            inputStream.close();
-
-            ByteBuffer modelBuffer = ByteBuffer.allocateDirect(modelBytes.length);
-            modelBuffer.put(modelBytes);
-
-            Interpreter.Options options = new Interpreter.Options();
-            options.setNumThreads(4);
-
-            tfliteInterpreter = new Interpreter(modelBuffer, options);
-            Log.i(TAG, "TensorFlow Lite model loaded successfully");
+            String modelAsset = selectModelAsset();
+            Log.i(TAG, "Loading TensorFlow Lite model " + modelAsset + "...");
+            interpreterPool = InterpreterPool.create(this, modelAsset, MAX_INTERPRETERS, BENCHMARK_RUNS);
+            for (Interpreter interpreter : interpreterPool.interpreters()) {
+                tfliteSessions.put(interpreter, new TFLiteSession(interpreter));
+            }
+            Interpreter first = interpreterPool.interpreters().get(0);
+            Log.i(TAG, "TensorFlow Lite model loaded successfully (input " + first.getInputTensor(0).dataType()
+                    + ", output " + first.getOutputTensor(0).dataType() + ")");
         } catch (IOException e) {
             Log.e(TAG, "Error loading TensorFlow Lite model", e);
-            tfliteInterpreter = null;
+            interpreterPool = null;
         }
     }
 
     /**
-     * Preprocess image for TensorFlow Lite
+     * The INT8 model if it is preferred and bundled, otherwise the float model
      */
-    private ByteBuffer preprocessImage(Mat image) {
-        // Convert to RGB
-        Mat rgbImage = new Mat();
-        if (image.channels() == 4) {
-            Imgproc.cvtColor(image, rgbImage, Imgproc.COLOR_BGRA2RGB);
-        } else if (image.channels() == 3) {
-            Imgproc.cvtColor(image, rgbImage, Imgproc.COLOR_BGR2RGB);
-        } else {
-            rgbImage = image.clone();
+    private String selectModelAsset() {
+        if (preferInt8Model()) {
+            try {
+                if (Arrays.asList(getAssets().list("")).contains(INT8_MODEL_ASSET)) {
+                    return INT8_MODEL_ASSET;
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Could not list assets", e);
+            }
         }
+        return MODEL_ASSET;
+    }
 
-        // Resize to model input size
-        Mat resizedImage = new Mat();
-        Imgproc.resize(rgbImage, resizedImage, new Size(INPUT_SIZE, INPUT_SIZE));
+    /**
+     * Whether to use the INT8 model, from MODEL_CHOICE_FILE in the app's files
+     * ("float" or "int8"), so the model can be switched without a rebuild.
+     * Without the file the INT8 model is preferred.
+     */
+    private boolean preferInt8Model() {
+        File choice = new File(getFilesDir(), MODEL_CHOICE_FILE);
+        if (!choice.isFile()) {
+            return true;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(choice))) {
+            String line = reader.readLine();
+            String value = line == null ? "" : line.trim().toLowerCase(Locale.US);
+            if (value.equals("float") || value.equals("int8")) {
+                Log.i(TAG, "Model choice from " + MODEL_CHOICE_FILE + ": " + value);
+                return value.equals("int8");
+            }
+            Log.w(TAG, "Ignoring model choice \"" + value + "\" in " + MODEL_CHOICE_FILE + ", expected float or int8");
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read " + MODEL_CHOICE_FILE, e);
+        }
+        return true;
+    }
 
-        // Convert to ByteBuffer and normalize
-        ByteBuffer inputBuffer = ByteBuffer.allocateDirect(4 * INPUT_SIZE * INPUT_SIZE * CHANNELS);
-        inputBuffer.order(ByteOrder.nativeOrder());
+    /**
+     * Run TensorFlow Lite detection and pick the landmark with the most boxes
+     */
+    private TFLiteResult detectWithTFLite(Mat image, int areaId, AtomicBoolean cancelled) {
+        if (interpreterPool == null) {
+            Log.w(TAG, "TensorFlow Lite interpreter not available");
+            return null;
+        }
 
-        byte[] imageData = new byte[(int) (resizedImage.total() * resizedImage.channels())];
-        resizedImage.get(0, 0, imageData);
+        Interpreter interpreter;
+        try {
+            interpreter = interpreterPool.borrow();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        try {
+            TFLiteSession session = tfliteSessions.get(interpreter);
+            YoloDetector yoloDetector = session.detector;
+            TensorPreprocessor tensorPreprocessor = session.preprocessor;
+            long t = timer.start();
+            ByteBuffer inputBuffer = tensorPreprocessor.process(image);
+            timer.stop(MissionTimer.PREPROCESS, areaId, t);
+            if (cancelled.get()) {
+                return null;
+            }
 
-        for (int i = 0; i < imageData.length; i += CHANNELS) {
-            float r = (imageData[i] & 0xFF) / 255.0f;
-            float g = (imageData[i + 1] & 0xFF) / 255.0f;
-            float b = (imageData[i + 2] & 0xFF) / 255.0f;
+            t = timer.start();
+            int detections = yoloDetector.detect(inputBuffer);
+            timer.stop(MissionTimer.TFLITE, areaId, t);
+            return toResult(yoloDetector, detections);
 
-            inputBuffer.putFloat(r);
-            inputBuffer.putFloat(g);
-            inputBuffer.putFloat(b);
+        } catch (Exception e) {
+            Log.e(TAG, "Error running TensorFlow Lite inference", e);
+        } finally {
+            interpreterPool.giveBack(interpreter);
         }
 
-        return inputBuffer;
+        return null;
     }
 
     /**
-     * Run TensorFlow Lite inference
+     * Run TensorFlow Lite on several images in one interpreter call.
+     * Returns one result (or null) per image, or null if batching is not possible.
      */
-    private TFLiteResult classifyWithTFLite(Mat image) {
-        if (tfliteInterpreter == null) {
-            Log.w(TAG, "TensorFlow Lite interpreter not available");
+    private TFLiteResult[] detectWithTFLite(List<Mat> images, int areaId) {
+        if (interpreterPool == null || batchUnsupported) {
             return null;
         }
 
+        Interpreter interpreter;
         try {
-            ByteBuffer inputBuffer = preprocessImage(image);
-            float[][] output = new float[1][NUM_CLASSES];
-
-            tfliteInterpreter.run(inputBuffer, output);
-
-            // Find the class with highest confidence
-            int maxIndex = 0;
-            float maxConfidence = output[0][0];
-
-            for (int i = 1; i < NUM_CLASSES; i++) {
-                if (output[0][i] > maxConfidence) {
-                    maxConfidence = output[0][i];
-                    maxIndex = i;
-                }
+            interpreter = interpreterPool.borrow();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        try {
+            TFLiteSession session = tfliteSessions.get(interpreter);
+            YoloDetector yoloDetector = session.detector;
+            if (session.batch == null) {
+                session.batch = new BatchPreprocessor(yoloDetector, BURST_FRAMES);
             }
+            long t = timer.start();
+            ByteBuffer inputBuffer = session.batch.process(images);
+            timer.stop(MissionTimer.PREPROCESS, areaId, t);
 
-            if (maxIndex < TEMPLATE_NAMES.length) {
-                return new TFLiteResult(TEMPLATE_NAMES[maxIndex], maxConfidence, maxIndex);
+            t = timer.start();
+            yoloDetector.runBatch(inputBuffer, images.size());
+            timer.stop(MissionTimer.TFLITE, areaId, t);
+
+            TFLiteResult[] results = new TFLiteResult[images.size()];
+            for (int i = 0; i < results.length; i++) {
+                results[i] = toResult(yoloDetector, yoloDetector.decode(i));
             }
+            return results;
 
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            Log.w(TAG, "Model does not accept a batch dimension, classifying one image at a time", e);
+            batchUnsupported = true;
         } catch (Exception e) {
-            Log.e(TAG, "Error running TensorFlow Lite inference", e);
+            Log.e(TAG, "Error running batched TensorFlow Lite inference", e);
+        } finally {
+            interpreterPool.giveBack(interpreter);
         }
 
         return null;
     }
 
+    /**
+     * Pick the landmark with the most boxes from the detector's last decode
+     */
+    private TFLiteResult toResult(YoloDetector yoloDetector, int detections) {
+        if (detections == 0) {
+            return null;
+        }
+
+        // Class with the most boxes wins; ties go to the higher best score
+        int[] classCounts = yoloDetector.classCounts;
+        float[] bestScores = new float[classCounts.length];
+        for (int i = 0; i < detections; i++) {
+            int cls = yoloDetector.classes[i];
+            bestScores[cls] = Math.max(bestScores[cls], yoloDetector.scores[i]);
+        }
+        int maxIndex = 0;
+        for (int i = 1; i < classCounts.length; i++) {
+            if (classCounts[i] > classCounts[maxIndex]
+                    || (classCounts[i] == classCounts[maxIndex] && bestScores[i] > bestScores[maxIndex])) {
+                maxIndex = i;
+            }
+        }
+
+        if (maxIndex < MODEL_LABELS.length) {
+            return new TFLiteResult(MODEL_LABELS[maxIndex], bestScores[maxIndex], maxIndex, classCounts[maxIndex]);
+        }
+        return null;
+    }
+
     /**
      * Enhanced template matching with better accuracy
      */
-    private TFLiteResult performTemplateMatching(Mat image) {
-        if (templates.isEmpty()) {
+    private TFLiteResult performTemplateMatching(Mat image, AtomicBoolean cancelled) {
+        if (templateBank == null) {
             Log.w(TAG, "No templates loaded for matching");
             return null;
         }
@@ -185,253 +319,645 @@ public class YourService extends KiboRpcService {
             grayImage = image.clone();
         }
 
-        int[] matchCounts = new int[TEMPLATE_NAMES.length];
+        ScaleMatcher scaleMatcher = new ScaleMatcher(templateBank.templateCount());
+        try {
+            if (!scaleMatcher.match(grayImage, templateBank, TEMPLATE_MATCH_THRESHOLD, cancelled)) {
+                return null;
+            }
+            // The template with most matches; the confidence is the match quality, so a weak match cannot outrank a confident TFLite result
+            int best = scaleMatcher.best();
+            if (best >= 0) {
+                String name = templateNames.get(best);
+                return new TFLiteResult(name, (float) scaleMatcher.bestScores[best], Arrays.asList(MODEL_LABELS).indexOf(name));
+            }
+        } finally {
+            grayImage.release();
+            scaleMatcher.release();
+        }
 
-        // Perform template matching for each template
-        for (int i = 0; i < templates.size() && i < TEMPLATE_NAMES.length; i++) {
-            Mat template = templates.get(i);
-            Mat result = new Mat();
+        return null;
+    }
 
-            // Try multiple scales
-            for (int scale = 20; scale <= 80; scale += 15) {
-                Mat resizedTemplate = new Mat();
-                int newHeight = (int)(template.rows() * ((double)scale / template.cols()));
-                Imgproc.resize(template, resizedTemplate, new Size(scale, newHeight));
+    /**
+     * Enhanced item detection using both TensorFlow Lite and template matching
+     */
+    private TFLiteResult detectItems(Mat image, int areaId) {
+        return detectTagged(image, areaId * FRAME_TAGS);
+    }
 
-                Imgproc.matchTemplate(grayImage, resizedTemplate, result, Imgproc.TM_CCOEFF_NORMED);
+    /**
+     * Item detection for one frame of a burst; see FRAME_TAGS
+     */
+    private TFLiteResult detectBurstFrame(Mat image, int areaId, int frame) {
+        return detectTagged(image, areaId * FRAME_TAGS + frame + 1);
+    }
 
-                Core.MinMaxLocResult mmr = Core.minMaxLoc(result);
-                if (mmr.maxVal > 0.6) { // Lower threshold for better detection
-                    matchCounts[i]++;
-                }
-            }
+    private TFLiteResult detectTagged(Mat image, int tag) {
+        long start = timer.start();
+        try {
+            return detectItemsTimed(image, tag);
+        } finally {
+            timer.stop(MissionTimer.DETECT_TOTAL, tag / FRAME_TAGS, start);
         }
+    }
 
-        // Find the template with most matches
-        int maxMatches = 0;
-        int maxIndex = 0;
-        for (int i = 0; i < matchCounts.length; i++) {
-            if (matchCounts[i] > maxMatches) {
-                maxMatches = matchCounts[i];
-                maxIndex = i;
-            }
-        }
+    private TFLiteResult detectItemsTimed(Mat image, int tag) {
+        // Save image for debugging, off the mission thread
+        diagnostics.saveImage(image, "detection_image_" + System.currentTimeMillis() + ".png");
 
-        if (maxMatches > 0) {
-            return new TFLiteResult(TEMPLATE_NAMES[maxIndex], 0.7f, maxIndex);
+        // Methods 1 and 2: TensorFlow Lite and template matching, ordered by learned cost
+        TFLiteResult detected = detectorCascade().detect(image, tag, FRAME_BUDGET_MS);
+        if (detected != null) {
+            Log.i(TAG, detectorCascade.lastStage + " detected: " + detected.count + " x " + detected.className +
+                    " (confidence: " + detected.confidence + ")");
+            return detected;
         }
 
+        // No guess here: a made-up class would count as a real vote in the burst
+        Log.w(TAG, "No items detected");
         return null;
     }
 
     /**
-     * Enhanced item detection using both TensorFlow Lite and template matching
+     * Cascade over TensorFlow Lite and template matching; the cascade tag
+     * carries the area, for the stage timings, and the burst frame, for the
+     * batched TensorFlow Lite results.
      */
-    private TFLiteResult detectItems(Mat image) {
-        // Save image for debugging
-        api.saveMatImage(image, "detection_image_" + System.currentTimeMillis() + ".png");
-
-        // Method 1: Try TensorFlow Lite first
-        TFLiteResult tfliteResult = classifyWithTFLite(image);
-        if (tfliteResult != null && tfliteResult.confidence > 0.6) {
-            Log.i(TAG, "TensorFlow Lite detected: " + tfliteResult.className +
-                    " (confidence: " + tfliteResult.confidence + ")");
-            return tfliteResult;
-        }
-
-        // Method 2: Fallback to enhanced template matching
-        TFLiteResult templateResult = performTemplateMatching(image);
-        if (templateResult != null) {
-            Log.i(TAG, "Template matching detected: " + templateResult.className);
-            return templateResult;
+    private DetectorCascade<TFLiteResult> detectorCascade() {
+        if (detectorCascade != null) {
+            return detectorCascade;
         }
+        List<DetectorCascade.Stage<TFLiteResult>> stages = new ArrayList<>();
+        // A TensorFlow Lite result counts when its confidence is above 0.6
+        int interpreters = interpreterPool != null ? interpreterPool.size() : 1;
+        tfliteStage = new DetectorCascade.Stage<TFLiteResult>("TensorFlow Lite", 0.6f, 250, 0.7, interpreters) {
+            @Override
+            boolean isPrefetched(int tag) {
+                synchronized (prefetchedTFLite) {
+                    return prefetchedTFLite.containsKey(tag);
+                }
+            }
 
-        // Method 3: Return most common item as fallback
-        Log.w(TAG, "No items detected, using fallback");
-        return new TFLiteResult("coin", 0.5f, 3); // Default to coin
+            @Override
+            TFLiteResult detect(Mat image, int tag, AtomicBoolean cancelled) {
+                synchronized (prefetchedTFLite) {
+                    if (prefetchedTFLite.containsKey(tag)) {
+                        return prefetchedTFLite.get(tag);
+                    }
+                }
+                return detectWithTFLite(image, tag / FRAME_TAGS, cancelled);
+            }
+        };
+        stages.add(tfliteStage);
+        // A template result counts when its best normalized correlation is above the match threshold
+        stages.add(new DetectorCascade.Stage<TFLiteResult>("Template matching", TEMPLATE_MATCH_THRESHOLD, 400, 0.5) {
+            @Override
+            TFLiteResult detect(Mat image, int tag, AtomicBoolean cancelled) {
+                long t = timer.start();
+                TFLiteResult result = performTemplateMatching(image, cancelled);
+                timer.stop(MissionTimer.TEMPLATE_MATCH, tag / FRAME_TAGS, t);
+                return result;
+            }
+        });
+        detectorCascade = new DetectorCascade<>(new DetectorCascade.Confidence<TFLiteResult>() {
+            @Override
+            public float of(TFLiteResult result) {
+                return result.confidence;
+            }
+        }, stages);
+        return detectorCascade;
     }
 
     protected void runPlan1() {
         Log.i(this.TAG, "start mission");
-        this.api.startMission();
+        if (interpreterPool == null) {
+            initializeTensorFlowLite();
+        }
         loadTemplates();
+        waypointPlanner = new WaypointPlanner();
+        waypointPlanner.load(new File(getFilesDir(), WAYPOINT_CACHE_FILE));
+        mission = MissionApiFactory.create(this, api);
+        motion = new MotionExecutor(mission, LOOP_MAX, waypointPlanner);
+        diagnostics = new DiagnosticsWriter(mission, 8, DiagnosticsWriter.OverflowPolicy.DROP_NEWEST, 1);
+
+        // Fewest stops that see every area, then the visit order and poses that minimize the expected travel time.
+        // Both depend only on the layout and the calibration, so they are planned before the mission clock starts.
+        navCamIntrinsics = fetchNavCamIntrinsics();
+        ViewPlanner viewPlanner = null;
+        List<List<Pose>> candidates = patrolCandidates();
+        if (navCamIntrinsics != null) {
+            viewPlanner = new ViewPlanner(navCamIntrinsics, NAVCAM_WIDTH, NAVCAM_HEIGHT, MIN_MARKER_PIXELS);
+            views = viewPlanner.plan(candidates);
+        } else {
+            Log.w(TAG, "No NavCam intrinsics, one stop per area from its own poses");
+            views = singleAreaViews(candidates);
+        }
+        TravelTimeModel travelTime = TravelTimeModel.fit(
+                TravelTimeModel.readSamples(new File(getFilesDir(), MOVE_SAMPLES_FILE)), TravelTimeModel.DEFAULT);
+        Pose astronautPose = new Pose(KiboLayout.ASTRONAUT_POINT, KiboLayout.ASTRONAUT_QUATERNION);
+        List<List<Pose>> stopPoses = new ArrayList<>();
+        double[] targetShare = new double[views.size()];
+        for (int i = 0; i < views.size(); i++) {
+            stopPoses.add(views.get(i).poses);
+            targetShare[i] = (double) views.get(i).areas.length / KiboLayout.AREAS.length;
+        }
+        route = new RoutePlanner(travelTime, waypointPlanner).plan(currentPose, stopPoses, targetShare, astronautPose);
+        if (route == null) {
+            Log.w(TAG, "No route over " + views.size() + " stops, patrolling every area in order from its first pose");
+            views = singleAreaViews(candidates);
+            Pose[] poses = new Pose[candidates.size()];
+            int[] order = new int[candidates.size()];
+            for (int i = 0; i < candidates.size(); i++) {
+                poses[i] = candidates.get(i).get(0);
+                order[i] = i + 1;
+            }
+            route = new RoutePlanner.Route(order, poses, Double.NaN);
+        }
+        for (int stop : route.order) {
+            ViewPlanner.View view = views.get(stop - 1);
+            Pose pose = route.poses[stop - 1];
+            for (int areaId : view.areas) {
+                areaPoses[areaId - 1] = pose;
+                areaMarkers[areaId - 1] = view.areas.length;
+                if (viewPlanner != null && view.areas.length > 1) {
+                    areaPixels[areaId - 1] = viewPlanner.pixel(pose, KiboLayout.areaCenter(areaId));
+                }
+            }
+            Log.i(TAG, "Stop " + stop + ": areas " + Arrays.toString(view.areas) + " from " + pose);
+        }
+        Log.i(TAG, "Travel time model: " + travelTime);
+        Log.i(TAG, "Patrol order " + Arrays.toString(route.order) + " over " + views.size() + " stops, expected travel "
+                + String.format(Locale.US, "%.1f", route.expectedSeconds) + " s");
+        mission.startMission();
+        timer.missionStarted();
+
+        // Perception of each area runs on a worker while the robot moves to the next one
+        patrolPipeline = new PatrolPipeline<>(
+                new PatrolPipeline.Perception<PatrolResult>() {
+                    @Override
+                    public PatrolResult process(int areaId, List<Mat> frames) {
+                        return recognizeArea(areaId, frames);
+                    }
+                },
+                new PatrolPipeline.Reporter<PatrolResult>() {
+                    @Override
+                    public void report(int areaId, PatrolResult result) {
+                        reportArea(areaId, result);
+                    }
+                });
+
+        for (int stop : route.order) {
+            Pose pose = route.poses[stop - 1];
+            patrolAndRecognize(views.get(stop - 1).areas, pose.point, pose.quaternion);
+        }
 
-        Point point = new Point(10.9d, -9.9d, 4.8d);
-        Quaternion quatArea1 = new Quaternion(0.0f, 0.707f, 0.0f, 0.707f);
-        Point pointArea2 = new Point(11.0d, -8.5d, 4.5d);
-        Quaternion quatArea2 = new Quaternion(0.0f, 0.0f, 0.0f, 1.0f);
-        Point pointArea3 = new Point(10.9d, -7.2d, 4.8d);
-        Quaternion quatArea3 = new Quaternion(0.0f, -0.707f, 0.0f, 0.707f);
-
-        patrolAndRecognize(1, point, quatArea1);
-        patrolAndRecognize(2, pointArea2, quatArea2);
-        patrolAndRecognize(3, pointArea3, quatArea3);
-        patrolAndRecognize(4, new Point(10.3d, -8.0d, 5.4d), new Quaternion(0.707f, 0.0f, -0.707f, 0.0f));
-
-        Log.i(this.TAG, "Patrol complete. All areas have been scanned.");
+        Log.i(this.TAG, "Patrol complete. All areas have been captured.");
         Log.i(this.TAG, "Moving to astronaut to report completion.");
-        moveToWrapper(new Point(11.143d, -6.7607d, 4.9654d), new Quaternion(0.0f, 0.0f, 0.707f, 0.707f));
-        this.api.reportRoundingCompletion();
+        moveToWrapper(MissionTimer.ASTRONAUT, astronautPose.point, astronautPose.quaternion);
+        patrolPipeline.drain();
+        mission.reportRoundingCompletion();
 
         // Detect what the astronaut is looking for
         Log.i(TAG, "Analyzing what the astronaut wants...");
-        Mat astronautImage = api.getMatNavCam();
-        TFLiteResult astronautResult = detectItems(astronautImage);
+        long t = timer.start();
+        Mat astronautImage = mission.getMatNavCam();
+        timer.stop(MissionTimer.NAVCAM, MissionTimer.ASTRONAUT, t);
+        TFLiteResult astronautResult = null;
+        if (astronautImage != null) {
+            astronautResult = detectItems(astronautImage, MissionTimer.ASTRONAUT);
+        } else {
+            Log.w(TAG, "No NavCam image at the astronaut");
+        }
         if (astronautResult != null) {
             astronautTargetItem = astronautResult.className;
             Log.i(TAG, "Astronaut is looking for: " + astronautTargetItem);
         }
 
         // Notify recognition
-        api.notifyRecognitionItem();
+        mission.notifyRecognitionItem();
 
         // Find the target item location
         Log.i(TAG, "Searching for target item: " + astronautTargetItem);
-        Point targetLocation = findTargetItemLocation();
+        Pose targetLocation = findTargetItemLocation();
 
         if (targetLocation != null) {
             Log.i(TAG, "Moving to target item location.");
-            moveToWrapper(targetLocation, quatArea1);
+            moveToWrapper(MissionTimer.NO_AREA, targetLocation.point, targetLocation.quaternion);
         } else {
             Log.i(TAG, "Target item location not found, using default location.");
-            moveToWrapper(point, quatArea1);
+            Pose area1 = areaPoses[0];
+            moveToWrapper(MissionTimer.NO_AREA, area1.point, area1.quaternion);
         }
 
         Log.i(this.TAG, "Taking final snapshot.");
-        this.api.takeTargetItemSnapshot();
+        mission.takeTargetItemSnapshot();
         Log.i(this.TAG, "Mission finished.");
-        this.api.shutdownFactory();
+        diagnostics.close(5000);
+        if (detectorCascade != null) {
+            detectorCascade.logStats();
+            detectorCascade.shutdown();
+        }
+        timer.report(getFilesDir(), "mission_timing.txt");
+        motion.report(getFilesDir(), "mission_motion.txt");
+        saveMoveSamples();
+        try {
+            waypointPlanner.save(new File(getFilesDir(), WAYPOINT_CACHE_FILE));
+        } catch (IOException e) {
+            Log.w(TAG, "Could not save planned paths", e);
+        }
+        mission.shutdownFactory();
     }
 
     /**
-     * Find the location where the target item was detected
+     * Candidate viewing poses per area: the original patrol pose and one
+     * facing the item sheet squarely from 0.7 m
      */
-    private Point findTargetItemLocation() {
+    private List<List<Pose>> patrolCandidates() {
+        List<List<Pose>> candidates = new ArrayList<>();
+        candidates.add(Arrays.asList(
+                new Pose(new Point(10.9d, -9.9d, 4.8d), new Quaternion(0.0f, 0.707f, 0.0f, 0.707f)),
+                new Pose(new Point(10.95d, -9.88d, 5.195d), new Quaternion(0.0f, 0.0f, -0.707f, 0.707f))));
+        candidates.add(Arrays.asList(
+                new Pose(new Point(11.0d, -8.5d, 4.5d), new Quaternion(0.0f, 0.0f, 0.0f, 1.0f)),
+                new Pose(new Point(10.925d, -8.875d, 4.46d), new Quaternion(0.0f, 0.707f, 0.0f, 0.707f))));
+        candidates.add(Arrays.asList(
+                new Pose(new Point(10.9d, -7.2d, 4.8d), new Quaternion(0.0f, -0.707f, 0.0f, 0.707f)),
+                new Pose(new Point(10.925d, -7.925d, 4.46d), new Quaternion(0.0f, 0.707f, 0.0f, 0.707f))));
+        candidates.add(Arrays.asList(
+                new Pose(new Point(10.3d, -8.0d, 5.4d), new Quaternion(0.707f, 0.0f, -0.707f, 0.0f)),
+                new Pose(new Point(10.567d, -6.8525d, 4.945d), new Quaternion(0.0f, 0.0f, 1.0f, 0.0f))));
+        return candidates;
+    }
+
+    /**
+     * One stop per area over that area's own candidate poses
+     */
+    private static List<ViewPlanner.View> singleAreaViews(List<List<Pose>> candidates) {
+        List<ViewPlanner.View> views = new ArrayList<>();
+        for (int i = 0; i < candidates.size(); i++) {
+            views.add(new ViewPlanner.View(new int[]{i + 1}, candidates.get(i), 0));
+        }
+        return views;
+    }
+
+    /**
+     * NavCam calibration {camera matrix, distortion coefficients}, or null when it is unavailable
+     */
+    private double[][] fetchNavCamIntrinsics() {
+        try {
+            double[][] intrinsics = mission.getNavCamIntrinsics();
+            if (intrinsics != null && intrinsics.length >= 2 && intrinsics[0] != null && intrinsics[0].length == 9
+                    && intrinsics[1] != null) {
+                return intrinsics;
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not read the NavCam intrinsics", e);
+        }
+        return null;
+    }
+
+    /**
+     * Find the viewing pose of the area where the target item was detected
+     */
+    private Pose findTargetItemLocation() {
         for (PatrolResult result : patrolResults) {
             if (result.foundItemName.equals(astronautTargetItem)) {
-                // Return the corresponding area position
-                switch (result.areaId) {
-                    case 1: return new Point(10.9d, -9.9d, 4.8d);
-                    case 2: return new Point(11.0d, -8.5d, 4.5d);
-                    case 3: return new Point(10.9d, -7.2d, 4.8d);
-                    case 4: return new Point(10.3d, -8.0d, 5.4d);
-                }
+                return areaPoses[result.areaId - 1];
             }
         }
         return null; // Not found
     }
 
-    private void patrolAndRecognize(int areaId, Point patrolPoint, Quaternion patrolQuat) {
+    /**
+     * Move to a stop and capture a burst of frames for each area seen from it; recognition is left to the patrol pipeline
+     */
+    private void patrolAndRecognize(int[] areaIds, Point patrolPoint, Quaternion patrolQuat) {
+        int areaId = areaIds[0];
         String str = this.TAG;
-        Log.i(str, "Processing Area " + areaId);
-        if (!moveToWrapper(patrolPoint, patrolQuat)) {
+        Log.i(str, "Processing Area " + Arrays.toString(areaIds));
+        if (!moveToWrapper(areaId, patrolPoint, patrolQuat)) {
             String str2 = this.TAG;
-            Log.e(str2, "Could not move to Area " + areaId + ". Skipping.");
-            this.patrolResults.add(new PatrolResult(areaId, "move_failed", 0));
+            Log.e(str2, "Could not move to Area " + Arrays.toString(areaIds) + ". Skipping.");
+            for (int id : areaIds) {
+                patrolPipeline.submit(id, new ArrayList<Mat>());
+            }
             return;
         }
 
-        // Get camera image
-        Mat matNavCam = this.api.getMatNavCam();
+        // Get camera images and hand them to the worker before the next move
+        List<Mat> frames = captureBurst(areaId);
+        // The pipeline releases the frames it is given, so all but the last area get copies
+        for (int k = 0; k < areaIds.length; k++) {
+            List<Mat> areaFrames = frames;
+            if (k < areaIds.length - 1) {
+                areaFrames = new ArrayList<>();
+                for (Mat frame : frames) areaFrames.add(frame.clone());
+            }
+            patrolPipeline.submit(areaIds[k], areaFrames);
+        }
+        patrolPipeline.reportReady();
+    }
 
-        // Detect AR markers to ensure we're in the right position
-        List<Mat> corners = new ArrayList<>();
-        Mat markerIds = new Mat();
-        Dictionary dictionary = Aruco.getPredefinedDictionary(Aruco.DICT_5X5_250);
-        Aruco.detectMarkers(matNavCam, dictionary, corners, markerIds);
+    /**
+     * Capture BURST_FRAMES NavCam frames back to back. A capture identical to
+     * the previous frame is retried after STALE_RETRY_MS, so the vote does not
+     * count one camera image several times; fresh frames cost no wait.
+     */
+    private List<Mat> captureBurst(int areaId) {
+        List<Mat> frames = new ArrayList<>();
+        for (int i = 0; i < BURST_FRAMES; i++) {
+            Mat previous = frames.isEmpty() ? null : frames.get(frames.size() - 1);
+            Mat frame = null;
+            for (int attempt = 0; attempt <= MAX_STALE_CAPTURES; attempt++) {
+                if (frame != null) {
+                    frame.release();
+                    try {
+                        Thread.sleep(STALE_RETRY_MS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return frames;
+                    }
+                }
+                long t = timer.start();
+                frame = mission.getMatNavCam();
+                timer.stop(MissionTimer.NAVCAM, areaId, t);
+                if (frame == null || previous == null || !sameImage(frame, previous)) {
+                    break;
+                }
+            }
+            if (frame == null) {
+                continue;
+            }
+            if (previous != null && sameImage(frame, previous)) {
+                Log.w(TAG, "NavCam returned the same image again in Area " + areaId + ", burst has fewer frames");
+                frame.release();
+                break;
+            }
+            frames.add(frame);
+        }
+        return frames;
+    }
 
-        if (!corners.isEmpty()) {
-            Log.i(TAG, "AR markers detected in Area " + areaId);
+    private static boolean sameImage(Mat a, Mat b) {
+        return a.size().equals(b.size()) && a.type() == b.type() && Core.norm(a, b, Core.NORM_INF) == 0;
+    }
+
+    /**
+     * Recognize the items in one area by voting over its burst (runs on the patrol worker)
+     */
+    private PatrolResult recognizeArea(final int areaId, List<Mat> frames) {
+        if (frames.isEmpty()) {
+            return new PatrolResult(areaId, "move_failed", 0);
+        }
+
+        // Crop every frame first, so the whole burst goes through TensorFlow Lite in one call
+        List<Mat> crops = new ArrayList<>();
+        for (Mat frame : frames) {
+            crops.add(prepareFrame(areaId, frame).clone());
+        }
+        long batchStart = System.nanoTime();
+        TFLiteResult[] batched = crops.size() > 1 ? detectWithTFLite(crops, areaId) : null;
+        if (batched != null) {
+            // The cascade answers these frames from the batch, so the batch is what it learns TFLite's cost from
+            detectorCascade().recordBatch(tfliteStage, (System.nanoTime() - batchStart) / 1e6, Arrays.asList(batched));
+            synchronized (prefetchedTFLite) {
+                for (int i = 0; i < batched.length; i++) {
+                    prefetchedTFLite.put(areaId * FRAME_TAGS + i + 1, batched[i]);
+                }
+            }
+        }
+
+        // The detector cascade is not reentrant, so crops are voted on one at a time
+        int winner;
+        try {
+            winner = burstVoter.vote(crops, new BurstVoter.FrameDetector() {
+                @Override
+                public BurstVoter.Vote detect(Mat crop, int index) {
+                    TFLiteResult result = detectBurstFrame(crop, areaId, index);
+                    int classIndex = result != null ? Arrays.asList(MODEL_LABELS).indexOf(result.className) : -1;
+                    return classIndex >= 0 ? new BurstVoter.Vote(classIndex, result.confidence, result.count) : null;
+                }
+            });
+        } finally {
+            synchronized (prefetchedTFLite) {
+                prefetchedTFLite.clear();
+            }
+            for (Mat crop : crops) {
+                crop.release();
+            }
+        }
 
-            // Undistort the image for better detection
-            Mat undistortedImage = undistortImage(matNavCam);
+        if (winner < 0) {
+            Log.w(TAG, "No items detected in Area " + areaId);
+            return new PatrolResult(areaId, "unknown", 0);
+        }
+        Log.i(TAG, "Area " + areaId + " vote: " + MODEL_LABELS[winner] + " (score " + burstVoter.score(winner)
+                + " from " + burstVoter.framesVoted + " of " + burstVoter.framesUsed + " frames)");
+        return new PatrolResult(areaId, MODEL_LABELS[winner], burstVoter.count(winner));
+    }
 
-            // Detect items using enhanced detection
-            TFLiteResult detectionResult = detectItems(undistortedImage);
+    /**
+     * Image of the item sheet in one captured frame (runs on the patrol worker).
+     * The result may be pooled and is only valid until the next call.
+     */
+    private Mat prepareFrame(int areaId, Mat matNavCam) {
 
-            if (detectionResult != null) {
-                String itemName = detectionResult.className;
-                int itemCount = 1; // Assume 1 item for now
+        // Detect AR markers to ensure we're in the right position
+        long t = timer.start();
+        markerDetector.detect(matNavCam, Math.max(1, areaMarkers[areaId - 1]));
+        List<Mat> corners = markerDetector.corners;
+        timer.stop(MissionTimer.MARKERS, areaId, t);
 
-                Log.i(TAG, "In Area " + areaId + ", found " + itemCount + " of " + itemName);
-                this.api.setAreaInfo(areaId, itemName, itemCount);
-                this.patrolResults.add(new PatrolResult(areaId, itemName, itemCount));
+        if (!corners.isEmpty()) {
+            Log.i(TAG, "AR markers " + Arrays.toString(markerDetector.markerIds) + " detected in Area " + areaId);
+
+            // Rectify just the item sheet next to the marker; fall back to the whole undistorted frame
+            t = timer.start();
+            int marker = markerFor(areaId, corners);
+            Mat sheetImage = null;
+            if (marker < 0) {
+                Log.w(TAG, "No AR marker where Area " + areaId + " should appear, using whole frame");
             } else {
-                Log.w(TAG, "No items detected in Area " + areaId);
-                this.api.setAreaInfo(areaId, "unknown", 0);
-                this.patrolResults.add(new PatrolResult(areaId, "unknown", 0));
+                sheetImage = extractItemSheet(matNavCam, corners.get(marker));
+                if (sheetImage == null) {
+                    Log.w(TAG, "Item sheet not fully in view in Area " + areaId + ", using whole frame");
+                }
+            }
+            if (sheetImage == null) {
+                sheetImage = undistortImage(matNavCam);
             }
+            timer.stop(MissionTimer.UNDISTORT, areaId, t);
+            return sheetImage;
         } else {
             Log.w(TAG, "No AR markers detected in Area " + areaId + ", using fallback detection");
             // Fallback detection without AR markers
-            TFLiteResult detectionResult = detectItems(matNavCam);
-            String itemName = detectionResult != null ? detectionResult.className : "coin";
-            int itemCount = 1;
+            return matNavCam;
+        }
+    }
+
+    /**
+     * Index of the marker belonging to an area: the first one, or in a frame
+     * shared by several areas the one nearest to where the area should
+     * appear and at most MARKER_MATCH_WIDTHS of its own sides away from it;
+     * -1 if no marker is that close
+     */
+    private int markerFor(int areaId, List<Mat> corners) {
+        double[] expected = areaPixels[areaId - 1];
+        if (expected == null) {
+            return 0;
+        }
+        int best = -1;
+        double bestDistance = Double.MAX_VALUE;
+        for (int i = 0; i < corners.size(); i++) {
+            double u = 0, v = 0, side = 0;
+            double[] previous = corners.get(i).get(0, 3);
+            for (int c = 0; c < 4; c++) {
+                double[] corner = corners.get(i).get(0, c);
+                u += corner[0] / 4;
+                v += corner[1] / 4;
+                side += Math.hypot(corner[0] - previous[0], corner[1] - previous[1]) / 4;
+                previous = corner;
+            }
+            double d = Math.hypot(u - expected[0], v - expected[1]);
+            if (d <= MARKER_MATCH_WIDTHS * side && d < bestDistance) {
+                bestDistance = d;
+                best = i;
+            }
+        }
+        return best;
+    }
 
-            this.api.setAreaInfo(areaId, itemName, itemCount);
-            this.patrolResults.add(new PatrolResult(areaId, itemName, itemCount));
+    /**
+     * Report one area's result to the API (runs on the mission thread, in area order)
+     */
+    private void reportArea(int areaId, PatrolResult result) {
+        if (result == null) {
+            result = new PatrolResult(areaId, "unknown", 0);
         }
+        if (!result.foundItemName.equals("move_failed")) {
+            Log.i(TAG, "In Area " + areaId + ", found " + result.itemCount + " of " + result.foundItemName);
+            mission.setAreaInfo(areaId, result.foundItemName, result.itemCount);
+        }
+        this.patrolResults.add(result);
     }
 
     /**
-     * Undistort camera image using intrinsic parameters
+     * Undistort camera image with the cached NavCam rectification maps.
+     * The result is pooled and only valid until the next call.
      */
     private Mat undistortImage(Mat image) {
         try {
-            Mat cameraMatrix = new Mat(3, 3, CvType.CV_64F);
-            cameraMatrix.put(0, 0, api.getNavCamIntrinsics()[0]);
-
-            Mat distCoeffs = new Mat(1, 5, CvType.CV_64F);
-            distCoeffs.put(0, 0, api.getNavCamIntrinsics()[1]);
-
-            Mat undistorted = new Mat();
-            Calib3d.undistort(image, undistorted, cameraMatrix, distCoeffs);
-
-            return undistorted;
+            if (undistorter == null) {
+                undistorter = new Undistorter(navCamIntrinsics);
+            }
+            return undistorter.undistort(image);
         } catch (Exception e) {
             Log.w(TAG, "Could not undistort image, using original", e);
             return image;
         }
     }
 
-    private boolean moveToWrapper(Point point, Quaternion quaternion) {
-        int retry_count = 0;
-        while (retry_count < 3) {
-            if (this.api.moveTo(point, quaternion, true).hasSucceeded()) {
-                Log.i(this.TAG, "Move successful.");
-                return true;
+    /**
+     * Fronto-parallel crop of the item sheet beside a detected marker, or null.
+     * The crop is pooled and only valid until the next call.
+     */
+    private Mat extractItemSheet(Mat image, Mat markerCorners) {
+        try {
+            if (undistorter == null) {
+                undistorter = new Undistorter(navCamIntrinsics);
+            }
+            if (itemSheetRoi == null) {
+                itemSheetRoi = new ItemSheetRoi(undistorter);
             }
-            retry_count++;
-            String str = this.TAG;
+            return itemSheetRoi.extract(image, markerCorners);
+        } catch (Exception e) {
+            Log.w(TAG, "Could not extract item sheet", e);
+            return null;
         }
-        Log.e(this.TAG, "Move failed after 3 retries.");
-        return false;
     }
 
-    private void loadTemplates() {
-        Log.i(this.TAG, "Loading template images into memory.");
-        for (String fileName : this.TEMPLATE_NAMES) {
-            try {
-                InputStream inputStream = getAssets().open(fileName + ".png");
-                Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
-                Mat mat = new Mat();
-                Utils.bitmapToMat(bitmap, mat);
-                Imgproc.cvtColor(mat, mat, Imgproc.COLOR_BGR2GRAY);
-                this.templates.add(mat);
-                inputStream.close();
-            } catch (IOException e) {
-                Log.e(this.TAG, "Error loading template: " + fileName, e);
+    /**
+     * Move along collision-free waypoints; a goal with no path fails at once instead of timing out
+     */
+    private boolean moveToWrapper(int areaId, Point point, Quaternion quaternion) {
+        long start = timer.start();
+        try {
+            List<Point> waypoints = waypointPlanner.plan(currentPose.point, point);
+            if (waypoints == null) {
+                Log.e(this.TAG, "No collision-free path to " + point + ", not moving.");
+                return false;
+            }
+            if (waypoints.size() > 1) {
+                Log.i(this.TAG, "Moving through " + waypoints);
+            }
+            for (Point waypoint : waypoints) {
+                if (!moveLeg(areaLabel(areaId), waypoint, quaternion)) {
+                    return false;
+                }
             }
+            return true;
+        } finally {
+            timer.stop(MissionTimer.MOVE, areaId, start);
+        }
+    }
+
+    private boolean moveLeg(String label, Point point, Quaternion quaternion) {
+        if (!motion.moveTo(label, point, quaternion)) {
+            // Plan the next move from wherever the robot stopped
+            Pose pose = mission.getRobotPose();
+            if (pose != null) {
+                currentPose = pose;
+            }
+            return false;
+        }
+        // Retried, recovered and replayed moves would skew the travel-time model, so only clean real ones calibrate it
+        MotionExecutor.MoveRecord record = motion.lastRecord();
+        if (mission instanceof KiboMissionApi && record.attempts == 1 && record.strategy.length() == 0) {
+            moveSamples.add(new double[]{
+                    TravelTimeModel.distance(currentPose.point, point),
+                    TravelTimeModel.angle(currentPose.quaternion, quaternion),
+                    record.seconds});
+        }
+        currentPose = new Pose(point, quaternion);
+        return true;
+    }
+
+    private static String areaLabel(int areaId) {
+        switch (areaId) {
+            case MissionTimer.NO_AREA: return "target";
+            case MissionTimer.ASTRONAUT: return "astronaut";
+            default: return "area" + areaId;
+        }
+    }
+
+    private void saveMoveSamples() {
+        if (moveSamples.isEmpty()) {
+            return;
+        }
+        try {
+            TravelTimeModel.appendSamples(new File(getFilesDir(), MOVE_SAMPLES_FILE), moveSamples);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not save move durations", e);
         }
-        Log.i(this.TAG, "Finished loading " + this.templates.size() + " templates.");
+    }
+
+    private void loadTemplates() {
+        if (templateBank != null) {
+            return;
+        }
+        Log.i(this.TAG, "Loading template images into memory.");
+        templateBank = TemplateCache.load(this, TEMPLATE_NAMES, TemplateCache.Decoder.BITMAP, new int[]{20, 35, 50, 65, 80}, new int[]{0}, templateNames);
+        Log.i(this.TAG, "Finished loading " + templateBank.templateCount() + " templates.");
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
-        if (tfliteInterpreter != null) {
-            tfliteInterpreter.close();
+        if (interpreterPool != null) {
+            interpreterPool.close();
+            interpreterPool = null;
         }
+        ModelLoader.release();
     }
 
     protected void runPlan2() {
@@ -0,0 +1,139 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * JMH benchmarks of the template-matching hot paths on replayed NavCam frames.
+ *
+ * Each benchmark takes the next PNG from the frame directory, e.g. the
+ * detection_image_*.png and Annotated_Template_Area*.png files that the
+ * services save through DiagnosticsWriter. Every benchmark runs the class
+ * and configuration its service uses. Build and run from this directory;
+ * the OpenCV dependency bundles its native library (see pom.xml):
+ *
+ *   mvn package
+ *   java -jar target/benchmarks.jar PerceptionBenchmark -prof gc \
+ *       -jvmArgs "-Dkibo.frames=frames -Dkibo.templates=assets"
+ *
+ * Throughput mode reports operations per second and sample-time mode
+ * reports the mean and the p0.99 latency. The gc profiler adds the
+ * allocation rate (gc.alloc.rate.norm, bytes per operation) of each stage.
+ * The TFLite stages are in TfliteBenchmark.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PerceptionBenchmark {
+    // Same template set, banks, thresholds and worker cap as the services
+    private static final String[] TEMPLATE_NAMES = {"crystal", "emerald", "treasure_box", "coin", "compass", "coral", "fossil", "key", "letter", "shell"};
+    private static final double TFLITE_TEMPLATE_THRESHOLD = 0.6;
+    private static final double FRAMEWORK_THRESHOLD = 0.7;
+    private static final double SAMPLE_THRESHOLD = 0.7;
+    private static final AtomicBoolean NOT_CANCELLED = new AtomicBoolean();
+
+    static {
+        nu.pattern.OpenCV.loadLocally();
+    }
+
+    private final List<Mat> grayFrames = new ArrayList<>();
+    private int next;
+
+    private TemplateBank scaledBank; // YourServicewithTensorFlowLite: widths 20..80, upright
+    private TemplateBank originalBank; // TeerathapFrameWork: original size, upright
+    private TemplateBank rotatedBank; // mainYourservice: widths 20..100 step 5, every 45 degrees
+    private ScaleMatcher scaleMatcher;
+    private ParallelMatcher matcher;
+    private PeakExtractor peaks;
+    private final Mat result = new Mat();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+
+        int maxWidth = 0, maxHeight = 0;
+        for (Mat frame : ReplayFrames.load()) {
+            Mat gray = new Mat();
+            Imgproc.cvtColor(frame, gray, Imgproc.COLOR_BGR2GRAY);
+            frame.release();
+            grayFrames.add(gray);
+            maxWidth = Math.max(maxWidth, gray.cols());
+            maxHeight = Math.max(maxHeight, gray.rows());
+        }
+
+        File templateDir = new File(System.getProperty("kibo.templates", "templates"));
+        List<Mat> templates = new ArrayList<>();
+        for (String name : TEMPLATE_NAMES) {
+            Mat template = Imgcodecs.imread(new File(templateDir, name + ".png").getPath(), Imgcodecs.IMREAD_GRAYSCALE);
+            if (template.empty()) {
+                throw new IOException("Missing template " + name + ".png in " + templateDir.getAbsolutePath());
+            }
+            templates.add(template);
+        }
+        scaledBank = new TemplateBank(templates, new int[]{20, 35, 50, 65, 80}, new int[]{0});
+        originalBank = new TemplateBank(templates, new int[]{0}, new int[]{0});
+        rotatedBank = new TemplateBank(templates, TemplateBank.range(20, 100, 5), TemplateBank.range(0, 359, 45));
+        for (Mat template : templates) template.release();
+
+        scaleMatcher = new ScaleMatcher(scaledBank.templateCount());
+        matcher = new ParallelMatcher(Runtime.getRuntime().availableProcessors(), StderrLogSink.INSTANCE);
+        peaks = new PeakExtractor(maxWidth, maxHeight, 10);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        matcher.shutdown();
+        scaleMatcher.release();
+        result.release();
+    }
+
+    /** The serial ScaleMatcher vote behind YourServicewithTensorFlowLite.performTemplateMatching. */
+    @Benchmark
+    public int performTemplateMatching() {
+        scaleMatcher.match(nextGray(), scaledBank, TFLITE_TEMPLATE_THRESHOLD, NOT_CANCELLED);
+        return scaleMatcher.best();
+    }
+
+    /** The ParallelMatcher call behind TeerathapFrameWork.analyzeWithTemplateMatching. */
+    @Benchmark
+    public int analyzeWithTemplateMatching() {
+        return matcher.match(nextGray(), originalBank, FRAMEWORK_THRESHOLD).size();
+    }
+
+    /** PeakExtractor.matchTemplate over every template of the mainYourservice bank. */
+    @Benchmark
+    public int rotationScaleLoop() {
+        Mat gray = nextGray();
+        int total = 0;
+        for (int t = 0; t < rotatedBank.templateCount(); t++) {
+            total += peaks.matchTemplate(gray, rotatedBank, t, SAMPLE_THRESHOLD, result);
+        }
+        return total;
+    }
+
+    private Mat nextGray() {
+        next = (next + 1) % grayFrames.size();
+        return grayFrames.get(next);
+    }
+}
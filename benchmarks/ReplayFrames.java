@@ -0,0 +1,37 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+
+/**
+ * Replayed NavCam frames for the benchmarks: every PNG of the directory
+ * named by the kibo.frames property, in file name order.
+ */
+final class ReplayFrames {
+    private ReplayFrames() {
+    }
+
+    static List<Mat> load() throws IOException {
+        File frameDir = new File(System.getProperty("kibo.frames", "frames"));
+        File[] files = frameDir.listFiles();
+        if (files == null) {
+            throw new IOException("No frame directory " + frameDir.getAbsolutePath());
+        }
+        Arrays.sort(files);
+        List<Mat> frames = new ArrayList<>();
+        for (File file : files) {
+            if (!file.getName().endsWith(".png")) continue;
+            Mat frame = Imgcodecs.imread(file.getPath());
+            if (!frame.empty()) frames.add(frame);
+        }
+        if (frames.isEmpty()) {
+            throw new IOException("No PNG frames in " + frameDir.getAbsolutePath());
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,33 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+/**
+ * LogSink for the desktop benchmarks. Warnings and errors go to stderr;
+ * info output is dropped to keep measurements quiet.
+ */
+final class StderrLogSink implements LogSink {
+    static final LogSink INSTANCE = new StderrLogSink();
+
+    private StderrLogSink() {
+    }
+
+    @Override
+    public void info(String tag, String message) {
+    }
+
+    @Override
+    public void warn(String tag, String message, Throwable error) {
+        print("W", tag, message, error);
+    }
+
+    @Override
+    public void error(String tag, String message, Throwable error) {
+        print("E", tag, message, error);
+    }
+
+    private static void print(String level, String tag, String message, Throwable error) {
+        System.err.println(level + "/" + tag + ": " + message);
+        if (error != null) {
+            error.printStackTrace();
+        }
+    }
+}
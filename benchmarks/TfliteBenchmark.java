@@ -0,0 +1,91 @@
+package jp.jaxa.iss.kibo.rpc.sampleapk;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opencv.core.Mat;
+import org.tensorflow.lite.Interpreter;
+
+/**
+ * JMH benchmarks of the TFLite stages on replayed NavCam frames. TFLite
+ * publishes no desktop artifact, so this class is only built by the tflite
+ * profile against a desktop build of the TFLite Java API, whose JNI library
+ * must be on java.library.path:
+ *
+ *   mvn package -Ptflite -Dtflite.jar=/path/to/tensorflow-lite.jar
+ *   java -jar target/benchmarks.jar TfliteBenchmark -prof gc \
+ *       -jvmArgs "-Djava.library.path=/path/to/jni -Dkibo.frames=frames -Dkibo.model=assets/best.tflite"
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TfliteBenchmark {
+    static {
+        nu.pattern.OpenCV.loadLocally();
+    }
+
+    private List<Mat> frames;
+    private int next;
+
+    private Interpreter interpreter;
+    private YoloDetector detector;
+    private TensorPreprocessor preprocessor;
+    private ByteBuffer preprocessed;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        frames = ReplayFrames.load();
+
+        Interpreter.Options options = new Interpreter.Options();
+        options.setNumThreads(Integer.getInteger("kibo.threads", 4));
+        interpreter = new Interpreter(new File(System.getProperty("kibo.model", "best.tflite")), options);
+        detector = new YoloDetector(interpreter);
+        preprocessor = new TensorPreprocessor(detector);
+        preprocessed = preprocessor.process(frames.get(0));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        interpreter.close();
+    }
+
+    /** TensorPreprocessor.process: letterbox, color conversion and normalization into the input buffer. */
+    @Benchmark
+    public ByteBuffer preprocessImage() {
+        return preprocessor.process(nextFrame());
+    }
+
+    /** YoloDetector.detect: one inference plus decode and NMS on a preprocessed frame. */
+    @Benchmark
+    public int detectWithTFLite() {
+        return detector.detect(preprocessed);
+    }
+
+    /** Preprocessing and inference together, as detectWithTFLite runs them. */
+    @Benchmark
+    public int preprocessAndDetect() {
+        return detector.detect(preprocessor.process(nextFrame()));
+    }
+
+    private Mat nextFrame() {
+        next = (next + 1) % frames.size();
+        return frames.get(next);
+    }
+}
@@ -32,20 +32,8 @@ import java.util.Dictionary;
 
 public class YourService extends KiboRpcService {
     private final String TAG = this.getClass().getSimpleName();
+    private MissionApi mission;
 
-// Template file name
-    private final String[] TEMPLATE_FILE_NAME = {
-            "coin.png",
-            "compass.png",
-            "coral.png",
-            "crystal.png",
-            "emerald.png",
-            "fossil.png",
-            "key.png",
-            "letter.png",
-            "shell.png",
-            "treasure_box.png"
-    };
 // Template name
     private final String[] TEMPLATE_NAME = {
             "coin",
@@ -65,20 +53,23 @@ public class YourService extends KiboRpcService {
         Log.i(TAG, "start mission");
 
 
+        // The real api, or the replay simulator when a replay directory is installed
+        mission = MissionApiFactory.create(this, api);
+
         // The mission starts.
-        api.startMission();
+        mission.startMission();
 
         // Move to a point.
         Point point = new Point(10.9d, -9.92284d, 5.195d);
         Quaternion quaternion = new Quaternion(0f, 0f, -0.707f, 0.707f);
-        api.moveTo(point, quaternion, false);
+        mission.moveTo(point, quaternion, false);
 
         // Get a camera image.
-        Mat image = api.getMatNavCam();
+        Mat image = mission.getMatNavCam();
 
 
         // Save the image.
-        api.saveMatImage(image, "file.png");
+        mission.saveMatImage(image, "file.png");
 
 
         /* ******************************************************************************** */
@@ -97,10 +88,10 @@ public class YourService extends KiboRpcService {
 
         // Get camera matrix
         Mat cameraMatrix = new Mat(3, 3, CvType.CV_64F);
-        cameraMatrix.put(0, 0, api.getNavCamIntrinsics()[0]);
+        cameraMatrix.put(0, 0, mission.getNavCamIntrinsics()[0]);
         // Get lens distortion parameters
         Mat cameraCoefficients = new Mat(1, 5, CvType.CV_64F);
-        cameraCoefficients.put(0, 0, api.getNavCamIntrinsics()[1]);
+        cameraCoefficients.put(0, 0, mission.getNavCamIntrinsics()[1]);
         cameraCoefficients.convertTo(cameraCoefficients, CvType.CV_64F);
 
         // Undistort image
@@ -109,96 +100,33 @@ public class YourService extends KiboRpcService {
 
 
         // Pattern matching
-        // Load template images
-        Mat[] templates = new Mat[TEMPLATE_FILE_NAME.length];
-        for (int i = 0; i < TEMPLATE_FILE_NAME.length; i++) {
-            try {
-                // Open the template image file in Bitmap from the file name and convert to Mat
-                InputStream inputStream = getAssets().open(TEMPLATE_FILE_NAME[i]);
-                Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
-                Mat mat = new Mat();
-                Utils.bitmapToMat(bitmap, mat);
-
-
-                // Convert to grayscale
-                Imgproc.cvtColor(mat, mat, Imgproc.COLOR_BGR2GRAY);
+        // Load pre-scaled and pre-rotated template images (decoded once, then memory-mapped)
+        int widthMin = 20; //[px]
+        int widthMax = 100; //[px]
+        int changeWidth = 5; //[px]
+        int changeAngle = 45; //[px]
+        List<String> templateNames = new ArrayList<>();
+        TemplateBank templateBank = TemplateCache.load(this, TEMPLATE_NAME, TemplateCache.Decoder.BITMAP,
+                TemplateBank.range(widthMin, widthMax, changeWidth), TemplateBank.range(0, 359, changeAngle), templateNames);
 
-
-                // Assign to an array of templates
-                templates[i] = mat;
-
-                inputStream.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
         // Number of matches for each template
-        int templateMatchCnt[] = new int[templates.length];
-
-
-        //Get the number of template matches
-        for (int tempNum = 0; tempNum < templates.length; tempNum++) {
-            // Number of matches
-            int matchCnt = 0;
-
-
-            // Coordinates of the matched location
-            List<org.opencv.core.Point> matches = new ArrayList<>();
-
-
-            // Loading template image and target image
-            Mat template = templates[tempNum].clone();
-            Mat targetImg = undistortImg.clone();
-            // Pattern matching
-            int widthMin = 20; //[px]
-            int widthMax = 100; //[px]
-            int changeWidth = 5; //[px]
-            int changeAngle = 45; //[px]
-
+        int templateMatchCnt[] = new int[templateBank.templateCount()];
 
-            for (int size = widthMin; size <= widthMax; size += changeWidth) {
-                for (int angle = 0; angle < 360; angle += changeAngle) {
-                    Mat resizedTemp = resizeImg(template, size);
-                    Mat rotResizedTemp = rotImg(resizedTemp, angle);
 
+        // Reused by every template: result map and duplicate filter (within 10 px)
+        Mat result = new Mat();
+        PeakExtractor peaks = new PeakExtractor(undistortImg.cols(), undistortImg.rows(), 10);
 
-                    Mat result = new Mat();
-                    Imgproc.matchTemplate(targetImg, rotResizedTemp, result, Imgproc.TM_CCOEFF_NORMED);
-
-
-                    // Get coordinates with similarity greater than or equal to the threshold
-                    double threshold = 0.7;
-                    Core.MinMaxLocResult mmlr = Core.minMaxLoc(result);
-                    double maxVal = mmlr.maxVal;
-                    if (maxVal >= threshold) {
-                        // Extract only results greater than or equal to the threshold
-                        Mat thresholdedResult = new Mat();
-                        Imgproc.threshold(result, thresholdedResult, threshold, 1.0, Imgproc.THRESH_TOZERO);
-
-                        // Get coordinates of the matched location
-                        for (int y = 0; y < thresholdedResult.rows(); y++) {
-                            for (int x = 0; x < thresholdedResult.cols(); x++) {
-                                if (thresholdedResult.get(y, x)[0] > 0) {
-                                    matches.add(new org.opencv.core.Point(x, y));
-                                }
-
-                            }
-                        }
-                    }
-                }
-            }
-            // Avoid detecting the same location multiple times
-            List<org.opencv.core.Point> filteredMatches = removeDuplicates(matches);
-            matchCnt += filteredMatches.size();
-
-            // Number of matches for each template
-            templateMatchCnt[tempNum] = matchCnt;
+        //Get the number of template matches
+        for (int tempNum = 0; tempNum < templateBank.templateCount(); tempNum++) {
+            // Matches above 0.7 over every size and angle, de-duplicated as they are found
+            templateMatchCnt[tempNum] = peaks.matchTemplate(undistortImg, templateBank, tempNum, 0.7, result);
         }
 
 
         // When you recognize landmark items, let's set the type and number.
         int mostMatchTemplateNum = getMaxIndex(templateMatchCnt);
-        api.setAreaInfo( 1 , TEMPLATE_NAME[mostMatchTemplateNum], templateMatchCnt[mostMatchTemplateNum]);
+        mission.setAreaInfo( 1 , templateNames.get(mostMatchTemplateNum), templateMatchCnt[mostMatchTemplateNum]);
 
         /* **************************************************** */
         /* Let's move to each area and recognize the items. */
@@ -208,8 +136,8 @@ public class YourService extends KiboRpcService {
         // When you move to the front of the astronaut, report the rounding completion.
         point = new Point(11.143d, -6.7607d, 4.9654d);
         quaternion = new Quaternion(0f, 0f, 0.707f, 0.707f);
-        api.moveTo(point, quaternion, false);
-        api.reportRoundingCompletion();
+        mission.moveTo(point, quaternion, false);
+        mission.reportRoundingCompletion();
 
 
         /* ********************************************************** */
@@ -218,7 +146,7 @@ public class YourService extends KiboRpcService {
 
 
         // Let's notify the astronaut when you recognize it.
-        api.notifyRecognitionItem();
+        mission.notifyRecognitionItem();
 
         /* ******************************************************************************************************* */
         /* Write your code to move Astrobee to the location of the target item (what the astronaut is looking for) */
@@ -226,7 +154,10 @@ public class YourService extends KiboRpcService {
 
 
         // Take a snapshot of the target item.
-        api.takeTargetItemSnapshot();
+        mission.takeTargetItemSnapshot();
+
+        // End the mission; a replay writes its score report here
+        mission.shutdownFactory();
     }
 
 
@@ -243,48 +174,6 @@ public class YourService extends KiboRpcService {
     private String yourMethod(){
         return "your method";
     }
-    // Resize image
-    private Mat resizeImg(Mat img, int width) {
-        int height = (int) (img.rows() * ((double) width / img.cols()));
-        Mat resizedImg = new Mat();
-        Imgproc.resize(img, resizedImg, new Size(width, height));
-
-        return resizedImg;
-    }
-    // Rotate image
-    private Mat rotImg(Mat img, int angle) {
-        org.opencv.core.Point center = new org.opencv.core.Point(img.cols() / 2.0, img.rows() / 2.0);
-        Mat rotatedMat = Imgproc.getRotationMatrix2D(center, angle, 1.0);
-        Mat rotatedImg = new Mat();
-        Imgproc.warpAffine(img, rotatedImg, rotatedMat, img.size());
-
-        return rotatedImg;
-    }
-    // remove multiple detections
-    private List<org.opencv.core.Point> removeDuplicates(List<org.opencv.core.Point> points) {
-        double length = 10; // Within 10 px
-        List<org.opencv.core.Point> filteredList = new ArrayList<>();
-        for (org.opencv.core.Point point : points) {
-            boolean isInclude = false;
-            for (org.opencv.core.Point checkPoint : filteredList) {
-                double distance = calculateDistance(point, checkPoint);
-                if (distance <= length) {
-                    isInclude = true;
-                    break;
-                }
-            }
-            if (!isInclude) {
-                filteredList.add(point);
-            }
-        }
-        return filteredList;
-    }
-    // Find the distance between two points
-    private double calculateDistance(org.opencv.core.Point p1, org.opencv.core.Point p2) {
-        double dx = p1.x - p2.x;
-        double dy = p1.y - p2.y;
-        return Math.sqrt(Math.pow(dx, 2) + Math.pow(dy, 2));
-    }
     // Get the maximum value of an array
     private int getMaxIndex(int[] array) {
         int max = 0;